@@ -0,0 +1,170 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+
+/**
+ * Circuit breaker over calls to a downstream resource, tripped open once the
+ * failure rate or slow-call rate over the latest calls passes its threshold.
+ * While open, calls fail fast without reaching the resource, until after a
+ * pause a limited number of probe calls are let through half-open to decide
+ * whether to close again.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+class Breaker {
+    private static enum State { CLOSED, OPEN, HALFOPEN }
+
+    private final String key;
+    private final boolean [] failed;
+    private final boolean [] slowed;
+    private final int minimum;
+    private final long failureRate;
+    private final long slowRate;
+    private final long slowMillis;
+    private final long openMillis;
+    private final int probes;
+    private State state = State.CLOSED;
+    private int calls = 0;
+    private int failures = 0;
+    private int slows = 0;
+    private int next = 0;
+    private long openedAt = 0;
+    private int probing = 0;
+    private int probed = 0;
+    private long opened = 0;
+    private long rejected = 0;
+
+    /**
+     * Admits a call unless open. Once open long enough, admits a limited
+     * number of probe calls, letting another batch through should the
+     * results of earlier probes never come back.
+     * 
+     * @param now current time
+     * @return true if the call may go ahead
+     */
+    synchronized boolean acquire(final long now) {
+        if (this.state == State.CLOSED)
+        {
+            return true;
+        }
+
+        if (now - this.openedAt >= this.openMillis && (this.state == State.OPEN || this.probing >= this.probes))
+        {
+            this.state = State.HALFOPEN;
+            this.openedAt = now;
+            this.probing = 0;
+            this.probed = 0;
+        }
+
+        if (this.state == State.HALFOPEN && this.probing < this.probes)
+        {
+            this.probing += 1;
+
+            return true;
+        }
+
+        this.rejected += 1;
+
+        MultiEndpointApi.counters.count("breaker.rejected");
+
+        return false;
+    }
+
+    synchronized void record(final long now, final long elapsed, final boolean failure) {
+        final boolean slow = elapsed >= this.slowMillis;
+
+        if (this.state == State.HALFOPEN)
+        {
+            if (failure == true || slow == true)
+            {
+                this.trip(now);
+            }
+            else
+            if ((this.probed += 1) >= this.probes)
+            {
+                this.state = State.CLOSED;
+            }
+
+            return;
+        }
+
+        if (this.state == State.OPEN)
+        {
+            return;
+        }
+
+        if (this.calls == this.failed.length)
+        {
+            this.failures -= this.failed[this.next] == true ? 1 : 0;
+            this.slows -= this.slowed[this.next] == true ? 1 : 0;
+        }
+        else
+        {
+            this.calls += 1;
+        }
+
+        this.failed[this.next] = failure;
+        this.slowed[this.next] = slow;
+        this.failures += failure == true ? 1 : 0;
+        this.slows += slow == true ? 1 : 0;
+        this.next = (this.next + 1) % this.failed.length;
+
+        if (this.calls >= this.minimum && (this.failures * 100 >= this.failureRate * this.calls || this.slows * 100 >= this.slowRate * this.calls))
+        {
+            this.trip(now);
+        }
+    }
+
+    private void trip(final long now) {
+        this.state = State.OPEN;
+        this.openedAt = now;
+        this.opened += 1;
+        this.calls = 0;
+        this.failures = 0;
+        this.slows = 0;
+        this.next = 0;
+
+        MultiEndpointApi.counters.count("breaker.opened");
+    }
+
+    /**
+     * Raises the failure answered while a call is refused.
+     * 
+     * @return failure for the open circuit
+     */
+    MultiEndpointApi.Failure refused() {
+        return new MultiEndpointApi.Failure
+            ( MultiEndpointApi.Fault.UNAVAILABLE
+            , "Circuit is open for " + this.key
+            );
+    }
+
+    synchronized Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new TreeMap<String, Object>();
+
+        snapshot.put("state", this.state.name().toLowerCase());
+        snapshot.put("calls", this.calls);
+        snapshot.put("failures", this.failures);
+        snapshot.put("slowCalls", this.slows);
+        snapshot.put("opened", this.opened);
+        snapshot.put("rejected", this.rejected);
+
+        return snapshot;
+    }
+
+    Breaker(final String key, final MultiEndpointApi.Params params) {
+        final int window = (int) Math.max(1, params.getOrDefault("ms_breaker_window", 20));
+
+        this.key = key;
+        this.failed = new boolean[window];
+        this.slowed = new boolean[window];
+        this.minimum = (int) Math.max(1, Math.min(window, params.getOrDefault("ms_breaker_min_calls", 10)));
+        this.failureRate = Math.max(1, params.getOrDefault("ms_breaker_failure_rate", 50));
+        this.slowRate = Math.max(1, params.getOrDefault("ms_breaker_slow_rate", 80));
+        this.slowMillis = Math.max(1, params.getOrDefault("ms_breaker_slow_ms", 2000));
+        this.openMillis = Math.max(0, params.getOrDefault("ms_breaker_open_ms", 10000));
+        this.probes = (int) Math.max(1, params.getOrDefault("ms_breaker_probes", 3));
+    }
+
+}
@@ -2,8 +2,12 @@ package com.unowmo.microwrap;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import com.amazonaws.*;
 import com.amazonaws.client.builder.*;
+import com.amazonaws.handlers.*;
+import com.amazonaws.retry.*;
 
 /**
  * AWS Lambda handler implementation that decodes deserialized requests and
@@ -17,7 +21,8 @@ import com.amazonaws.client.builder.*;
  *
  */
 public abstract class CachedServiceApi<T extends CachedServiceApi.ContainerContext, W extends MultiEndpointApi.ResourceWrapping<T>, R extends MultiEndpointApi.WrappedResources<T>> extends MultiEndpointApi<T, W, R> {
-    private final static Map<String, Cacher> servicePool = new HashMap<String, Cacher>();
+    private final static ConcurrentMap<String, Keeper> servicePool = new ConcurrentHashMap<String, Keeper>();
+    private static ThreadPoolExecutor clientWorkers = null;
 
     /**
      * Base container implementation for holding onto request-specific values
@@ -45,45 +50,153 @@ public abstract class CachedServiceApi<T extends CachedServiceApi.ContainerConte
     protected void fixupRequestContainer(final T context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
         super.fixupRequestContainer(context, command, trusted, region, config, logger);
         
-        if (servicePool.containsKey(region) == false)
+        Keeper keeper = servicePool.get(region);
+
+        if (keeper == null)
+        {
+            final Keeper created = new Keeper(region, context.params);
+
+            if ((keeper = servicePool.putIfAbsent(region, created)) == null)
+            {
+                keeper = created;
+            }
+        }
+
+        context.cacher = keeper;
+    }
+
+    /**
+     * Adds resolved configuration of each cached service client to the metrics
+     * command response.
+     * 
+     * @param metrics named sections of the metrics response being updated
+     */
+    @Override
+    protected void collectMetrics(final Map<String, Object> metrics) {
+        super.collectMetrics(metrics);
+
+        final List<Map<String, Object>> clients = new ArrayList<Map<String, Object>>();
+
+        for (final Keeper keeper : servicePool.values())
         {
-            servicePool.put(region, context.cacher = new Keeper(region));
+            for (final Keeper.Pair pair : keeper.clients)
+            {
+                clients.add(pair.resolved);
+            }
         }
-        else
+
+        metrics.put
+            ( "clients"
+            , clients
+            );
+
+        synchronized (CachedServiceApi.class)
         {
-            context.cacher = servicePool.get(region);
+            if (clientWorkers != null)
+            {
+                final Map<String, Object> workers = new LinkedHashMap<String, Object>();
+
+                workers.put("maximumPoolSize", clientWorkers.getMaximumPoolSize());
+                workers.put("poolSize", clientWorkers.getPoolSize());
+                workers.put("activeCount", clientWorkers.getActiveCount());
+                workers.put("queued", clientWorkers.getQueue().size());
+                workers.put("completedTaskCount", clientWorkers.getCompletedTaskCount());
+
+                metrics.put
+                    ( "clientWorkers"
+                    , workers
+                    );
+            }
         }
     }
 
+    /**
+     * Hands out the container-wide executor shared by all asynchronous clients
+     * instead of the per-client pools the sdk would otherwise create. It is
+     * bounded by "MS_CLIENT_ASYNC_THREADS" and "MS_CLIENT_ASYNC_QUEUE", with
+     * callers running work themselves once the queue is full.
+     * 
+     * @param params sizing parameters used on first call
+     * @return shared executor
+     */
+    private static synchronized ExecutorService clientWorkers(final Params params) {
+        if (clientWorkers == null)
+        {
+            final int threads = (int) Math.max(1, params.getOrDefault("ms_client_async_threads", 16));
+            final int queued = (int) Math.max(1, params.getOrDefault("ms_client_async_queue", 1024));
+            final AtomicInteger counter = new AtomicInteger();
+
+            clientWorkers = new ThreadPoolExecutor
+                ( threads
+                , threads
+                , 60
+                , TimeUnit.SECONDS
+                , new ArrayBlockingQueue<Runnable>(queued)
+                , new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "microwrap-client-" + counter.incrementAndGet());
+
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                }
+                , new ThreadPoolExecutor.CallerRunsPolicy()
+                );
+
+            clientWorkers.allowCoreThreadTimeOut(true);
+        }
+
+        return clientWorkers;
+    }
+
     /**
      * Interface for processing. 
      */
     protected static interface Cacher {
         
         <B extends AwsSyncClientBuilder<B, ?>> AmazonWebServiceClient access(Class<B> builderType);
+
+        <B extends AwsAsyncClientBuilder<B, ?>> AmazonWebServiceClient accessAsync(Class<B> builderType);
         
     }
     
     /**
      * Container for processing. 
+     * 
+     * Clients are built with connection pool size, timeouts, keep-alive and
+     * retry policy taken from params, first by service (for example with
+     * "MS_CLIENT_DYNAMODB_MAXCONN") and then for all services (as with
+     * "MS_CLIENT_MAXCONN"). Without either, sdk defaults are left alone.
      */
     private static class Keeper implements Cacher {
-        private final ArrayList<Pair> clients = new ArrayList<Pair>();
+        private final List<Pair> clients = new CopyOnWriteArrayList<Pair>();
+        private final Params params;
         private final String region;
 
         private static class Pair {
             final AmazonWebServiceClient client;
             final Class<?> builderType;
+            final Map<String, Object> resolved;
             
-            public Pair(AmazonWebServiceClient client, Class<?> builderType) {
+            public Pair(AmazonWebServiceClient client, Class<?> builderType, Map<String, Object> resolved) {
                 this.builderType = builderType;
+                this.resolved = resolved;
                 this.client = client;
             }
 
         }
         
-        @SuppressWarnings("unchecked")
         public <B extends AwsSyncClientBuilder<B, ?>> AmazonWebServiceClient access(Class<B> builderType) {
+            return this.obtain(builderType);
+        }
+
+        public <B extends AwsAsyncClientBuilder<B, ?>> AmazonWebServiceClient accessAsync(Class<B> builderType) {
+            return this.obtain(builderType);
+        }
+
+        private AmazonWebServiceClient obtain(final Class<?> builderType) {
             for (Pair pair : this.clients)
             {
                 if (pair.builderType == builderType)
@@ -92,36 +205,353 @@ public abstract class CachedServiceApi<T extends CachedServiceApi.ContainerConte
                 }
             }
 
-            try
+            synchronized (this)
             {
-                if (builderType.getMethod("standard") != null)
+                for (Pair pair : this.clients)
                 {
-                    AwsSyncClientBuilder<B, ?> builder = (AwsSyncClientBuilder<B, ?>) builderType.getMethod("standard").invoke(null);
+                    if (pair.builderType == builderType)
+                    {
+                        return pair.client;
+                    }
+                }
 
-                    if (builder != null)
+                try
+                {
+                    if (builderType.getMethod("standard") != null)
                     {
-                        AmazonWebServiceClient client = (AmazonWebServiceClient) builder.withRegion(this.region).build();
-                        
-                        this.clients.add
-                            ( new Pair
-                                ( client
-                                , builderType
-                                )
-                            );
-
-                        return client;
+                        AwsClientBuilder<?, ?> builder = (AwsClientBuilder<?, ?>) builderType.getMethod("standard").invoke(null);
+
+                        if (builder != null)
+                        {
+                            final Map<String, Object> resolved = new LinkedHashMap<String, Object>();
+                            final ClientConfiguration configuration = this.configure(builderType, resolved);
+
+                            if (configuration != null)
+                            {
+                                builder.setClientConfiguration(configuration);
+                            }
+
+                            if (this.params.getOrDefault("ms_breaker_enabled", false) == true)
+                            {
+                                builder.setRequestHandlers
+                                    ( new Tripping
+                                        ( breaker("client:" + Keeper.serviceOf(builderType) + ":" + this.region, this.params)
+                                        )
+                                    );
+
+                                resolved.put("breaker", true);
+                            }
+
+                            if (builder instanceof AwsAsyncClientBuilder)
+                            {
+                                final ExecutorService shared = clientWorkers(this.params);
+
+                                ((AwsAsyncClientBuilder<?, ?>) builder).setExecutorFactory
+                                    ( new ExecutorFactory() {
+                                        @Override
+                                        public ExecutorService newExecutor() {
+                                            return new Unowned(shared);
+                                        }
+                                    }
+                                    );
+
+                                resolved.put("async", true);
+                            }
+
+                            builder.setRegion(this.region);
+
+                            AmazonWebServiceClient client = (AmazonWebServiceClient) builder.build();
+                            
+                            this.clients.add
+                                ( new Pair
+                                    ( client
+                                    , builderType
+                                    , resolved
+                                    )
+                                );
+
+                            return client;
+                        }
                     }
                 }
-            }
-            catch (Exception eX)
-            {
+                catch (Exception eX)
+                {
+                }
             }
             
             return null;
         }
 
-        public Keeper(final String region) {
+        /**
+         * Resolves client configuration for the service built by the given type
+         * from params, recording the outcome for metrics.
+         * 
+         * @param builderType aws client builder type
+         * @param resolved receives resolved settings
+         * @return configuration or null if no setting given
+         */
+        private ClientConfiguration configure(final Class<?> builderType, final Map<String, Object> resolved) {
+            final String service = Keeper.serviceOf(builderType);
+            final ClientConfiguration configuration = new ClientConfiguration();
+            boolean tuned = false;
+
+            final long maxConn = this.setting(service, "maxconn", -1);
+            final long connTimeout = this.setting(service, "conntimeout", -1);
+            final long sockTimeout = this.setting(service, "socktimeout", -1);
+            final long reqTimeout = this.setting(service, "reqtimeout", -1);
+            final long maxIdle = this.setting(service, "maxidle", -1);
+            final long retries = this.setting(service, "retries", -1);
+            final String keepAlive = this.setting(service, "keepalive", "");
+            final String retryPolicy = this.setting(service, "retrypolicy", "");
+
+            if (maxConn > 0)
+            {
+                configuration.setMaxConnections((int) maxConn);
+                tuned = true;
+            }
+
+            if (connTimeout >= 0)
+            {
+                configuration.setConnectionTimeout((int) connTimeout);
+                tuned = true;
+            }
+
+            if (sockTimeout >= 0)
+            {
+                configuration.setSocketTimeout((int) sockTimeout);
+                tuned = true;
+            }
+
+            if (reqTimeout >= 0)
+            {
+                configuration.setRequestTimeout((int) reqTimeout);
+                tuned = true;
+            }
+
+            if (maxIdle > 0)
+            {
+                configuration.setConnectionMaxIdleMillis(maxIdle);
+                tuned = true;
+            }
+
+            if (keepAlive.equalsIgnoreCase("") == false)
+            {
+                configuration.setUseTcpKeepAlive(keepAlive.equalsIgnoreCase("true") == true || keepAlive.equals("1") == true);
+                tuned = true;
+            }
+
+            if (retries >= 0 || retryPolicy.equalsIgnoreCase("") == false)
+            {
+                // Service defaults are replaced once a configuration is given,
+                // so dynamodb keeps its own retry policy unless told otherwise.
+
+                final String policy = retryPolicy.equalsIgnoreCase("") == false ? retryPolicy : (service.equalsIgnoreCase("dynamodb") == true ? "dynamodb" : "default");
+
+                if (policy.equalsIgnoreCase("none") == true)
+                {
+                    configuration.setRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+                }
+                else
+                if (policy.equalsIgnoreCase("dynamodb") == true)
+                {
+                    configuration.setRetryPolicy(retries >= 0 ? PredefinedRetryPolicies.getDynamoDBDefaultRetryPolicyWithCustomMaxRetries((int) retries) : PredefinedRetryPolicies.getDynamoDBDefaultRetryPolicy());
+                }
+                else
+                {
+                    configuration.setRetryPolicy(retries >= 0 ? PredefinedRetryPolicies.getDefaultRetryPolicyWithCustomMaxRetries((int) retries) : PredefinedRetryPolicies.getDefaultRetryPolicy());
+                }
+
+                resolved.put("retryPolicy", policy.toLowerCase());
+                resolved.put("maxErrorRetry", configuration.getRetryPolicy().getMaxErrorRetry());
+                tuned = true;
+            }
+            else
+            if (service.equalsIgnoreCase("dynamodb") == true)
+            {
+                configuration.setRetryPolicy(PredefinedRetryPolicies.getDynamoDBDefaultRetryPolicy());
+            }
+
+            resolved.put("service", service);
+            resolved.put("region", this.region);
+            resolved.put("tuned", tuned);
+            resolved.put("maxConnections", configuration.getMaxConnections());
+            resolved.put("connectionTimeout", configuration.getConnectionTimeout());
+            resolved.put("socketTimeout", configuration.getSocketTimeout());
+            resolved.put("requestTimeout", configuration.getRequestTimeout());
+            resolved.put("connectionMaxIdleMillis", configuration.getConnectionMaxIdleMillis());
+            resolved.put("useTcpKeepAlive", configuration.useTcpKeepAlive());
+
+            return tuned == true ? configuration : null;
+        }
+
+        private long setting(final String service, final String name, final long defaultValue) {
+            return this.params.getOrDefault("ms_client_" + service + "_" + name, this.params.getOrDefault("ms_client_" + name, defaultValue));
+        }
+
+        private String setting(final String service, final String name, final String defaultValue) {
+            return this.params.getOrDefault("ms_client_" + service + "_" + name, this.params.getOrDefault("ms_client_" + name, defaultValue)).trim();
+        }
+
+        /**
+         * Derives service label from builder type name, so that something like
+         * "AmazonDynamoDBClientBuilder" becomes "dynamodb".
+         * 
+         * @param builderType aws client builder type
+         * @return lower case service label
+         */
+        static String serviceOf(final Class<?> builderType) {
+            String name = builderType.getSimpleName();
+
+            if (name.endsWith("AsyncClientBuilder") == true)
+            {
+                name = name.substring(0, name.length() - "AsyncClientBuilder".length());
+            }
+            else
+            if (name.endsWith("ClientBuilder") == true)
+            {
+                name = name.substring(0, name.length() - "ClientBuilder".length());
+            }
+
+            if (name.startsWith("Amazon") == true)
+            {
+                name = name.substring("Amazon".length());
+            }
+            else
+            if (name.startsWith("AWS") == true)
+            {
+                name = name.substring("AWS".length());
+            }
+
+            return name.toLowerCase();
+        }
+
+        public Keeper(final String region, final Params params) {
             this.region = region;
+            this.params = params;
+        }
+
+    }
+
+    /**
+     * Raised by cached service clients in place of calling a service while
+     * the circuit breaker for that client is open.
+     */
+    public static class OpenCircuitException extends SdkClientException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean isRetryable() {
+            return false;
+        }
+
+        public OpenCircuitException(final String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Container for processing.
+     * 
+     * Puts a client's calls behind its circuit breaker, counting calls that
+     * fail on connection errors, server errors or throttling along with slow
+     * calls over all their retries.
+     */
+    private static class Tripping extends RequestHandler2 {
+        private static final HandlerContextKey<Long> STARTED = new HandlerContextKey<Long>("microwrap.started");
+        private final Breaker breaker;
+
+        @Override
+        public AmazonWebServiceRequest beforeExecution(final AmazonWebServiceRequest request) {
+            if (this.breaker.acquire(System.currentTimeMillis()) == false)
+            {
+                throw new OpenCircuitException
+                    ( this.breaker.refused().getMessage()
+                    );
+            }
+
+            return request;
+        }
+
+        @Override
+        public void beforeRequest(final Request<?> request) {
+            if (request.getHandlerContext(STARTED) == null)
+            {
+                request.addHandlerContext(STARTED, System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public void afterResponse(final Request<?> request, final Response<?> response) {
+            this.record(request, false);
+        }
+
+        @Override
+        public void afterError(final Request<?> request, final Response<?> response, final Exception e) {
+            if (e instanceof OpenCircuitException)
+            {
+                return;
+            }
+
+            this.record
+                ( request
+                , e instanceof AmazonServiceException == false || RetryUtils.isRetryableServiceException((SdkBaseException) e) == true || RetryUtils.isThrottlingException((SdkBaseException) e) == true
+                );
+        }
+
+        private void record(final Request<?> request, final boolean failed) {
+            final Long started = request != null ? request.getHandlerContext(STARTED) : null;
+            final long now = System.currentTimeMillis();
+
+            this.breaker.record(now, started != null ? now - started : 0, failed);
+        }
+
+        Tripping(final Breaker breaker) {
+            this.breaker = breaker;
+        }
+
+    }
+
+    /**
+     * Container for processing.
+     * 
+     * Hands work to the shared executor but ignores shutdown, so that one
+     * client being shut down leaves the rest running.
+     */
+    private static class Unowned extends AbstractExecutorService {
+        private final ExecutorService delegate;
+
+        @Override
+        public void execute(final Runnable command) {
+            this.delegate.execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return this.delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return this.delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return this.delegate.awaitTermination(timeout, unit);
+        }
+
+        Unowned(final ExecutorService delegate) {
+            this.delegate = delegate;
         }
 
     }
@@ -0,0 +1,46 @@
+package com.unowmo.microwrap;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a method of an abstract handler service as the logic block for a
+ * request command. At compile time the command processor generates a
+ * concrete subclass of the service, named for the service with a "Handler"
+ * suffix, that dispatches commands with a switch and binds the request body
+ * to the method's request parameter, so no handler array is built by hand
+ * and nothing is reflected on at startup.
+ *
+ * Parameters are bound by type: the service's container context type, its
+ * wrapped resources type, java.util.Date for the time processing started,
+ * and at most one other parameter for the request body. Methods returning a
+ * CompletionStage are dispatched asynchronously.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Command {
+
+    /**
+     * Request command handled, matched ignoring case.
+     */
+    String value();
+
+    /**
+     * Handling of request security tokens.
+     */
+    MultiEndpointApi.Authenticate authenticate() default MultiEndpointApi.Authenticate.NONE;
+
+    /**
+     * Seconds results stay cached or zero for none.
+     */
+    long cache() default 0;
+
+    /**
+     * Whether identical concurrent requests share a result.
+     */
+    boolean coalesce() default false;
+
+}
@@ -0,0 +1,381 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+import java.io.*;
+import javax.annotation.processing.*;
+import javax.lang.model.*;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.*;
+import javax.tools.*;
+
+/**
+ * Annotation processor generating command dispatch for handler services with
+ * methods marked by {@link Command}. Each service gets a concrete subclass in
+ * its package, named for the service with a "Handler" suffix, holding one
+ * hook per command and overriding hook lookup with a switch on the command.
+ * Registered for discovery on the compile classpath.
+ *
+ * @author Kirk Bulis
+ *
+ */
+@SupportedAnnotationTypes("com.unowmo.microwrap.Command")
+public class CommandProcessor extends AbstractProcessor {
+    private static final String API = "com.unowmo.microwrap.MultiEndpointApi";
+
+    /**
+     * Container for processing.
+     */
+    static class Binding {
+        final ExecutableElement method;
+        final Command command;
+        final String label;
+        final boolean async;
+
+        Binding(final ExecutableElement method, final Command command, final boolean async) {
+            this.method = method;
+            this.command = command;
+            this.label = command.value().toLowerCase(Locale.ROOT);
+            this.async = async;
+        }
+
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment round) {
+        final Map<TypeElement, List<ExecutableElement>> services = new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+
+        for (final Element element : round.getElementsAnnotatedWith(Command.class))
+        {
+            if (element.getKind() == ElementKind.METHOD)
+            {
+                services.computeIfAbsent((TypeElement) element.getEnclosingElement(), (key) -> new ArrayList<ExecutableElement>()).add((ExecutableElement) element);
+            }
+        }
+
+        for (final Map.Entry<TypeElement, List<ExecutableElement>> service : services.entrySet())
+        {
+            try
+            {
+                this.generate(service.getKey(), service.getValue());
+            }
+            catch (IOException eX)
+            {
+                this.processingEnv.getMessager().printMessage
+                    ( Diagnostic.Kind.ERROR
+                    , "Failed to generate command dispatch: " + eX.getMessage()
+                    , service.getKey()
+                    );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the dispatching subclass of one service, reporting unsupported
+     * declarations as compile errors instead.
+     *
+     * @param service abstract handler service
+     * @param methods methods marked as commands
+     * @throws IOException raised on any error writing the source
+     */
+    private void generate(final TypeElement service, final List<ExecutableElement> methods) throws IOException {
+        final Messager messager = this.processingEnv.getMessager();
+        final Types types = this.processingEnv.getTypeUtils();
+        final Elements elements = this.processingEnv.getElementUtils();
+        final List<? extends TypeMirror> arguments = this.containerTypes(service.asType());
+
+        if (arguments == null || arguments.size() != 3)
+        {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Command service must extend " + API + " with concrete types", service);
+            return;
+        }
+
+        final boolean nested = service.getNestingKind() != NestingKind.TOP_LEVEL;
+
+        if (service.getModifiers().contains(Modifier.PRIVATE) == true || service.getModifiers().contains(Modifier.FINAL) == true || (nested == true && (service.getNestingKind() != NestingKind.MEMBER || service.getModifiers().contains(Modifier.STATIC) == false)))
+        {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Command service must be a non-private, non-final top-level or static member class", service);
+            return;
+        }
+
+        final TypeMirror context = arguments.get(0);
+        final TypeMirror wrapped = arguments.get(2);
+        final TypeMirror date = elements.getTypeElement(Date.class.getCanonicalName()).asType();
+        final TypeMirror stage = types.erasure(elements.getTypeElement(java.util.concurrent.CompletionStage.class.getCanonicalName()).asType());
+        final TypeMirror checked = elements.getTypeElement(Exception.class.getCanonicalName()).asType();
+        final TypeMirror unchecked = elements.getTypeElement(RuntimeException.class.getCanonicalName()).asType();
+        final TypeMirror io = elements.getTypeElement(IOException.class.getCanonicalName()).asType();
+        final Map<String, Binding> bindings = new LinkedHashMap<String, Binding>();
+        boolean valid = true;
+
+        for (final ExecutableElement method : methods)
+        {
+            final Command command = method.getAnnotation(Command.class);
+            int requests = 0;
+
+            if (method.getModifiers().contains(Modifier.PRIVATE) == true || method.getTypeParameters().isEmpty() == false)
+            {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Command method must be non-private and non-generic", method);
+                valid = false;
+            }
+
+            for (final VariableElement parameter : method.getParameters())
+            {
+                final TypeMirror type = parameter.asType();
+
+                if (types.isSameType(type, context) == false && types.isSameType(type, wrapped) == false && types.isSameType(type, date) == false && ++requests > 1)
+                {
+                    messager.printMessage(Diagnostic.Kind.ERROR, "Command method may bind only one request parameter", parameter);
+                    valid = false;
+                }
+
+                if (type.getKind() == TypeKind.TYPEVAR || type.getKind() == TypeKind.WILDCARD)
+                {
+                    messager.printMessage(Diagnostic.Kind.ERROR, "Command request parameter must be a concrete type", parameter);
+                    valid = false;
+                }
+            }
+
+            for (final TypeMirror thrown : method.getThrownTypes())
+            {
+                if (types.isSubtype(thrown, checked) == true && types.isSubtype(thrown, unchecked) == false && types.isSubtype(thrown, io) == false)
+                {
+                    messager.printMessage(Diagnostic.Kind.ERROR, "Command method may only throw IOException or unchecked exceptions", method);
+                    valid = false;
+                }
+            }
+
+            if (command.value().trim().isEmpty() == true || bindings.containsKey(command.value().toLowerCase(Locale.ROOT)) == true)
+            {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Command label must be non-empty and unique ignoring case", method);
+                valid = false;
+            }
+            else
+            {
+                bindings.put(command.value().toLowerCase(Locale.ROOT), new Binding(method, command, types.isAssignable(types.erasure(method.getReturnType()), stage)));
+            }
+        }
+
+        final String constructed = this.constructedBy(service);
+
+        if (constructed == null)
+        {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Command service needs a non-private constructor taking no arguments or the hooks array", service);
+            valid = false;
+        }
+
+        if (valid == false)
+        {
+            return;
+        }
+
+        final String packaged = elements.getPackageOf(service).getQualifiedName().toString();
+        final StringBuilder named = new StringBuilder(service.getSimpleName());
+
+        for (Element enclosing = service.getEnclosingElement(); enclosing.getKind().isClass() == true || enclosing.getKind().isInterface() == true; enclosing = enclosing.getEnclosingElement())
+        {
+            named.insert(0, enclosing.getSimpleName() + "_");
+        }
+
+        final String generated = named.append("Handler").toString();
+        final String hook = API + ".Handled<" + context + ", " + wrapped + ">";
+        final JavaFileObject source = this.processingEnv.getFiler().createSourceFile(packaged.isEmpty() == true ? generated : packaged + "." + generated, service);
+
+        try (final PrintWriter out = new PrintWriter(source.openWriter()))
+        {
+            if (packaged.isEmpty() == false)
+            {
+                out.println("package " + packaged + ";");
+                out.println();
+            }
+
+            out.println("/**");
+            out.println(" * Command dispatch for {@link " + service.getQualifiedName() + "} generated at compile time.");
+            out.println(" */");
+            out.println("public class " + generated + " extends " + service.getQualifiedName() + " {");
+
+            int index = 0;
+
+            for (final Binding binding : bindings.values())
+            {
+                final String invoked = (binding.method.getModifiers().contains(Modifier.STATIC) == true ? service.getQualifiedName().toString() : generated + ".this") + "." + binding.method.getSimpleName() + "(" + this.argumentsOf(binding.method, context, wrapped, date) + ")";
+
+                out.println("    private final " + hook + " hook" + index + " = new " + API + "." + (binding.async == true ? "AsyncHandled" : "Handled") + "<" + context + ", " + wrapped + ">(\"" + this.escaped(binding.label) + "\", " + API + ".Authenticate." + binding.command.authenticate().name() + ", " + binding.command.cache() + "L, " + binding.command.coalesce() + ") {");
+                out.println();
+                out.println("        @Override");
+
+                if (binding.async == true)
+                {
+                    out.println("        public java.util.concurrent.CompletionStage<Object> doCommandAsync(final " + context + " context, final " + wrapped + " wrapped, final String posting, final java.util.Date started) throws java.io.IOException {");
+                    out.println("            return " + invoked + ".thenApply((value) -> (Object) value);");
+                }
+                else if (binding.method.getReturnType().getKind() == TypeKind.VOID)
+                {
+                    out.println("        public Object doCommand(final " + context + " context, final " + wrapped + " wrapped, final String posting, final java.util.Date started) throws java.io.IOException {");
+                    out.println("            " + invoked + ";");
+                    out.println("            return java.util.Collections.emptyMap();");
+                }
+                else
+                {
+                    out.println("        public Object doCommand(final " + context + " context, final " + wrapped + " wrapped, final String posting, final java.util.Date started) throws java.io.IOException {");
+                    out.println("            return " + invoked + ";");
+                }
+
+                out.println("        }");
+                out.println();
+                out.println("    };");
+                out.println();
+                index++;
+            }
+
+            out.println("    @Override");
+            out.println("    protected " + hook + " lookupHandled(final String command) {");
+            out.println("        switch (command.toLowerCase(java.util.Locale.ROOT))");
+            out.println("        {");
+
+            index = 0;
+
+            for (final Binding binding : bindings.values())
+            {
+                out.println("            case \"" + this.escaped(binding.label) + "\": return this.hook" + index++ + ";");
+            }
+
+            out.println("            default: return super.lookupHandled(command);");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+            out.println("    @SuppressWarnings(\"unchecked\")");
+            out.println("    public " + generated + "() {");
+            out.println("        " + constructed + ";");
+            out.println("    }");
+            out.println();
+            out.println("}");
+        }
+    }
+
+    /**
+     * Finds the type arguments the service gives the endpoint base class.
+     *
+     * @param type service type
+     * @return context, wrapper and wrapped types or null if not a service
+     */
+    private List<? extends TypeMirror> containerTypes(final TypeMirror type) {
+        final Types types = this.processingEnv.getTypeUtils();
+
+        for (TypeMirror at = type; at != null && at.getKind() == TypeKind.DECLARED; )
+        {
+            final DeclaredType declared = (DeclaredType) at;
+
+            if (((TypeElement) declared.asElement()).getQualifiedName().contentEquals(API) == true)
+            {
+                return declared.getTypeArguments();
+            }
+
+            final List<? extends TypeMirror> supers = types.directSupertypes(at);
+
+            at = supers.isEmpty() == false ? supers.get(0) : null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Picks the service constructor the generated class chains to, either one
+     * taking no arguments or one taking only the hooks array, which is passed
+     * empty since the generated lookup serves the commands.
+     *
+     * @param service abstract handler service
+     * @return constructor invocation or null if none usable
+     */
+    private String constructedBy(final TypeElement service) {
+        final Types types = this.processingEnv.getTypeUtils();
+        final TypeMirror handled = types.erasure(this.processingEnv.getElementUtils().getTypeElement(API + ".Handled").asType());
+        String constructed = null;
+
+        for (final ExecutableElement constructor : ElementFilter.constructorsIn(service.getEnclosedElements()))
+        {
+            if (constructor.getModifiers().contains(Modifier.PRIVATE) == true)
+            {
+                continue;
+            }
+
+            if (constructor.getParameters().isEmpty() == true)
+            {
+                return "super()";
+            }
+
+            final TypeMirror parameter = constructor.getParameters().size() == 1 ? constructor.getParameters().get(0).asType() : null;
+
+            if (parameter != null && parameter.getKind() == TypeKind.ARRAY && types.isSameType(types.erasure(((ArrayType) parameter).getComponentType()), handled) == true)
+            {
+                constructed = "super(new " + API + ".Handled [0])";
+            }
+        }
+
+        return constructed;
+    }
+
+    /**
+     * Builds the argument list for a command method, binding the request body
+     * as raw text, a parsed tree or a typed value.
+     *
+     * @return argument list source
+     */
+    private String argumentsOf(final ExecutableElement method, final TypeMirror context, final TypeMirror wrapped, final TypeMirror date) {
+        final Types types = this.processingEnv.getTypeUtils();
+        final StringBuilder arguments = new StringBuilder();
+
+        for (final VariableElement parameter : method.getParameters())
+        {
+            final TypeMirror type = parameter.asType();
+
+            if (arguments.length() > 0)
+            {
+                arguments.append(", ");
+            }
+
+            if (types.isSameType(type, context) == true)
+            {
+                arguments.append("context");
+            }
+            else if (types.isSameType(type, wrapped) == true)
+            {
+                arguments.append("wrapped");
+            }
+            else if (types.isSameType(type, date) == true)
+            {
+                arguments.append("started");
+            }
+            else if (type.toString().equals(String.class.getCanonicalName()) == true)
+            {
+                arguments.append("posting");
+            }
+            else if (type.toString().equals("com.fasterxml.jackson.databind.JsonNode") == true)
+            {
+                arguments.append(API + ".mapper.readTree(posting)");
+            }
+            else if (type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).getTypeArguments().isEmpty() == false)
+            {
+                arguments.append(API + ".mapper.<" + type + ">readValue(posting, new com.fasterxml.jackson.core.type.TypeReference<" + type + ">() { })");
+            }
+            else
+            {
+                arguments.append(API + ".mapper.readValue(posting, " + types.erasure(type) + ".class)");
+            }
+        }
+
+        return arguments.toString();
+    }
+
+    private String escaped(final String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+}
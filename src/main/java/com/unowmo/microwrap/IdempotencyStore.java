@@ -0,0 +1,362 @@
+package com.unowmo.microwrap;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Remembers serialized results of requests that completed under an
+ * idempotency key, so retried deliveries are answered again without running
+ * the handler. Entries live in a memory-mapped file that outlasts the
+ * handler instance for as long as the container keeps its temporary storage.
+ * The file holds a header, an open addressing table of key hashes and record
+ * offsets, then records appended in turn, each with its key, expiry and
+ * body. Expired and replaced records are dropped by compacting once the
+ * table or the records run out of room. Keys are claimed while their request
+ * runs, so that duplicates arriving meanwhile wait for the recorded result
+ * rather than running again.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+class IdempotencyStore {
+    private static final int MAGIC = 0x4d574944;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+    private static final int RECORD = 16;
+
+    private final java.nio.MappedByteBuffer mapped;
+    private final int capacity;
+    private final int slots;
+    private final int dataStart;
+    private final long ttlMillis;
+    final int recordLimit;
+    private int dataEnd = 0;
+    private int live = 0;
+    private long compactions = 0;
+    private final ConcurrentMap<String, CompletableFuture<Void>> claims = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    /**
+     * Claims a key for a request about to run, first waiting out any
+     * request already running under it.
+     * 
+     * @param key idempotency key
+     * @param deadline request deadline or zero if none
+     * @return claim to release once any result is recorded
+     * @throws IOException raised when the deadline passes while waiting
+     */
+    CompletableFuture<Void> claim(final String key, final long deadline) throws IOException {
+        final CompletableFuture<Void> claim = new CompletableFuture<Void>();
+
+        while (true)
+        {
+            final CompletableFuture<Void> running = this.claims.putIfAbsent(key, claim);
+
+            if (running == null)
+            {
+                return claim;
+            }
+
+            MultiEndpointApi.counters.count("idempotency.waited");
+
+            try
+            {
+                if (deadline > 0)
+                {
+                    running.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                else
+                {
+                    running.get();
+                }
+            }
+            catch (TimeoutException eX)
+            {
+                throw new MultiEndpointApi.Failure
+                    ( MultiEndpointApi.Fault.DEADLINE
+                    , "Request under same idempotency key did not complete before request deadline"
+                    );
+            }
+            catch (InterruptedException eX)
+            {
+                Thread.currentThread().interrupt();
+
+                throw new IOException
+                    ( "Interrupted waiting on idempotency key"
+                    , eX
+                    );
+            }
+            catch (ExecutionException eX)
+            {
+            }
+        }
+    }
+
+    void release(final String key, final CompletableFuture<Void> claim) {
+        this.claims.remove(key, claim);
+
+        claim.complete(null);
+    }
+
+    synchronized byte [] lookup(final String key, final long now) {
+        final byte [] keyed = key.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        final int slot = this.probe(hashOf(keyed), keyed);
+
+        if (slot < 0)
+        {
+            return null;
+        }
+
+        final int offset = this.mapped.getInt(HEADER + slot * SLOT + 8);
+
+        if (this.mapped.getLong(offset + 8) <= now)
+        {
+            return null;
+        }
+
+        final byte [] body = new byte[this.mapped.getInt(offset + 4)];
+
+        this.read(offset + RECORD + keyed.length, body);
+
+        return body;
+    }
+
+    synchronized boolean store(final String key, final byte [] body, final long now) {
+        final byte [] keyed = key.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        final long length = (long) RECORD + keyed.length + body.length;
+
+        if (body.length > this.recordLimit || length > this.capacity - this.dataStart)
+        {
+            return false;
+        }
+
+        if (this.live + 1 > this.slots / 2 || this.dataEnd + length > this.capacity)
+        {
+            this.compact(now);
+
+            if (this.live + 1 > this.slots / 2 || this.dataEnd + length > this.capacity)
+            {
+                MultiEndpointApi.counters.count("idempotency.full");
+
+                return false;
+            }
+        }
+
+        this.append(keyed, body, now + this.ttlMillis);
+
+        return true;
+    }
+
+    private void append(final byte [] keyed, final byte [] body, final long expires) {
+        final long hash = hashOf(keyed);
+        final int offset = this.dataEnd;
+
+        // Record goes down ahead of the slot pointing at it, and the slot
+        // ahead of the header claiming both.
+
+        this.mapped.putInt(offset, keyed.length);
+        this.mapped.putInt(offset + 4, body.length);
+        this.mapped.putLong(offset + 8, expires);
+        this.write(offset + RECORD, keyed);
+        this.write(offset + RECORD + keyed.length, body);
+
+        final int slot = this.probe(hash, keyed);
+
+        if (slot >= 0)
+        {
+            this.mapped.putInt(HEADER + slot * SLOT + 8, offset);
+        }
+        else
+        {
+            this.mapped.putLong(HEADER + (-slot - 1) * SLOT, hash);
+            this.mapped.putInt(HEADER + (-slot - 1) * SLOT + 8, offset);
+            this.live += 1;
+        }
+
+        this.dataEnd = offset + RECORD + keyed.length + body.length;
+        this.mapped.putInt(12, this.dataEnd);
+        this.mapped.putInt(16, this.live);
+    }
+
+    /**
+     * Finds the slot holding a key, or where it would go.
+     * 
+     * @return slot index if found, else minus one less the free slot index
+     */
+    private int probe(final long hash, final byte [] keyed) {
+        int at = (int) Long.remainderUnsigned(hash, this.slots);
+
+        for (int i = 0; i < this.slots; i++, at = (at + 1) % this.slots)
+        {
+            final int offset = this.mapped.getInt(HEADER + at * SLOT + 8);
+
+            if (offset == 0)
+            {
+                return -at - 1;
+            }
+
+            if (this.mapped.getLong(HEADER + at * SLOT) == hash && this.matches(offset, keyed) == true)
+            {
+                return at;
+            }
+        }
+
+        return Integer.MIN_VALUE;
+    }
+
+    private boolean matches(final int offset, final byte [] keyed) {
+        if (offset < this.dataStart || offset > this.dataEnd - RECORD || this.mapped.getInt(offset) != keyed.length || (long) offset + RECORD + keyed.length + this.mapped.getInt(offset + 4) > this.dataEnd)
+        {
+            return false;
+        }
+
+        final byte [] stored = new byte[keyed.length];
+
+        this.read(offset + RECORD, stored);
+
+        return Arrays.equals(stored, keyed);
+    }
+
+    /**
+     * Rewrites the store with only unexpired records, which also drops
+     * records replaced under the same key.
+     */
+    private void compact(final long now) {
+        final List<byte [][]> kept = new ArrayList<byte [][]>();
+        final List<Long> expiring = new ArrayList<Long>();
+
+        for (int at = 0; at < this.slots; at++)
+        {
+            final int offset = this.mapped.getInt(HEADER + at * SLOT + 8);
+
+            if (offset >= this.dataStart && offset <= this.dataEnd - RECORD)
+            {
+                final int keyLength = this.mapped.getInt(offset);
+                final int bodyLength = this.mapped.getInt(offset + 4);
+                final long expires = this.mapped.getLong(offset + 8);
+
+                if (expires > now && keyLength >= 0 && bodyLength >= 0 && (long) offset + RECORD + keyLength + bodyLength <= this.dataEnd)
+                {
+                    final byte [] keyed = new byte[keyLength];
+                    final byte [] body = new byte[bodyLength];
+
+                    this.read(offset + RECORD, keyed);
+                    this.read(offset + RECORD + keyLength, body);
+
+                    kept.add(new byte [][] { keyed, body });
+                    expiring.add(expires);
+                }
+            }
+        }
+
+        this.format();
+
+        for (int i = 0; i < kept.size(); i++)
+        {
+            this.append(kept.get(i)[0], kept.get(i)[1], expiring.get(i));
+        }
+
+        this.compactions += 1;
+
+        MultiEndpointApi.counters.count("idempotency.compacted");
+    }
+
+    private void format() {
+        for (int at = 0; at < this.dataStart; at += 8)
+        {
+            this.mapped.putLong(at, 0);
+        }
+
+        this.dataEnd = this.dataStart;
+        this.live = 0;
+
+        this.mapped.putInt(4, this.slots);
+        this.mapped.putInt(8, this.dataStart);
+        this.mapped.putInt(12, this.dataEnd);
+        this.mapped.putInt(16, this.live);
+        this.mapped.putInt(0, MAGIC);
+    }
+
+    private void read(final int offset, final byte [] target) {
+        final java.nio.ByteBuffer view = this.mapped.duplicate();
+
+        ((java.nio.Buffer) view).position(offset);
+
+        view.get(target);
+    }
+
+    private void write(final int offset, final byte [] source) {
+        final java.nio.ByteBuffer view = this.mapped.duplicate();
+
+        ((java.nio.Buffer) view).position(offset);
+
+        view.put(source);
+    }
+
+    private static long hashOf(final byte [] keyed) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (final byte b : keyed)
+        {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    synchronized Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new TreeMap<String, Object>();
+
+        snapshot.put("entries", this.live);
+        snapshot.put("slots", this.slots);
+        snapshot.put("bytes", this.dataEnd - this.dataStart);
+        snapshot.put("bytesLimit", this.capacity - this.dataStart);
+        snapshot.put("compactions", this.compactions);
+        snapshot.put("claimed", this.claims.size());
+
+        return snapshot;
+    }
+
+    IdempotencyStore(final File file, final int capacity, final long ttlMillis, final int recordLimit) throws IOException {
+        this.capacity = capacity;
+        this.slots = Math.max(64, capacity / 1024);
+        this.dataStart = HEADER + this.slots * SLOT;
+        this.ttlMillis = ttlMillis;
+        this.recordLimit = recordLimit;
+
+        if (this.dataStart + RECORD >= capacity)
+        {
+            throw new IOException
+                ( "Idempotency store too small for its table"
+                );
+        }
+
+        try (final RandomAccessFile opened = new RandomAccessFile(file, "rw"))
+        {
+            if (opened.length() != capacity)
+            {
+                opened.setLength(capacity);
+            }
+
+            this.mapped = opened.getChannel().map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        // Entries left by an earlier instance are kept when the layout is
+        // the same, otherwise the store starts over empty.
+
+        final int dataEnd = this.mapped.getInt(12);
+        final int live = this.mapped.getInt(16);
+
+        if (this.mapped.getInt(0) == MAGIC && this.mapped.getInt(4) == this.slots && this.mapped.getInt(8) == this.dataStart && dataEnd >= this.dataStart && dataEnd <= capacity && live >= 0 && live <= this.slots)
+        {
+            this.dataEnd = dataEnd;
+            this.live = live;
+        }
+        else
+        {
+            this.format();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.charset.*;
+import com.fasterxml.jackson.databind.*;
+
+/**
+ * Holds the secret keys for minting and verifying web tokens across key
+ * rotation. Tokens minted here name their key with a "kid" header, so that
+ * verification is a single lookup of signers already initialized for that
+ * key. Tokens without a "kid" are verified with the legacy key.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+public class JsonWebUserKeyring {
+    private final ConcurrentMap<String, Key> keys = new ConcurrentHashMap<String, Key>();
+    private volatile Key primary = null;
+    private volatile Key legacy = null;
+
+    static class Key {
+        final StringHashSigner.Factory factory;
+        final String secretKey;
+        final String kid;
+        final byte [] headers;
+
+        Key(final String kid, final String secretKey) throws IOException {
+            this.factory = StringHashSigner.factory(secretKey);
+            this.secretKey = secretKey;
+            this.kid = kid;
+
+            this.headers = Base64.getUrlEncoder().encode
+                ( (kid.equalsIgnoreCase("") == false ? "{ \"typ\": \"JWT\", \"alg\": \"HS256\", \"kid\": \"" + kid + "\" }" : "{ \"typ\": \"JWT\", \"alg\": \"HS256\" }").getBytes(StandardCharsets.UTF_8)
+                );
+        }
+
+    }
+
+    /**
+     * Adds key available for verifying tokens naming it, replacing any key of
+     * the same identity. The first key added becomes primary.
+     * 
+     * @param kid identity of key, limited to letters, digits, '.', '_' and '-'
+     * @param secretKey base64 string of secret key for hashing
+     * @exception IOException invalid identity or key
+     * @return this keyring
+     */
+    public JsonWebUserKeyring add(final String kid, final String secretKey) throws IOException {
+        if (kid == null || kid.matches("[A-Za-z0-9._-]+") == false)
+        {
+            throw new IOException
+                ( "Invalid key identity"
+                );
+        }
+
+        final Key key = new Key(kid, secretKey);
+
+        this.keys.put(kid, key);
+
+        if (this.primary == null || this.primary.kid.equals(kid) == true)
+        {
+            this.primary = key;
+        }
+
+        return this;
+    }
+
+    /**
+     * Retires key so that tokens naming it no longer verify.
+     * 
+     * @param kid identity of key
+     * @return this keyring
+     */
+    public JsonWebUserKeyring remove(final String kid) {
+        final Key key = this.keys.remove(kid);
+
+        if (key != null && this.primary == key)
+        {
+            this.primary = null;
+        }
+
+        return this;
+    }
+
+    /**
+     * Selects key used for minting new tokens.
+     * 
+     * @param kid identity of key already added
+     * @exception IOException unknown identity
+     * @return this keyring
+     */
+    public JsonWebUserKeyring usePrimary(final String kid) throws IOException {
+        final Key key = this.keys.get(kid);
+
+        if (key == null)
+        {
+            throw new IOException
+                ( "Unknown key identity"
+                );
+        }
+
+        this.primary = key;
+
+        return this;
+    }
+
+    /**
+     * Sets key for verifying tokens that carry no "kid" header, as minted by
+     * JsonWebUserToken directly.
+     * 
+     * @param secretKey base64 string of secret key for hashing, or null for none
+     * @exception IOException invalid key
+     * @return this keyring
+     */
+    public JsonWebUserKeyring useLegacy(final String secretKey) throws IOException {
+        this.legacy = secretKey != null ? new Key("", secretKey) : null;
+
+        return this;
+    }
+
+    /**
+     * Generates new web token signed by the primary key.
+     * 
+     * @param issuer application-specific label of issuing service
+     * @param user application-specific user identity code
+     * @param nowInSecs epoch time in secs
+     * @param expiresAfter interval duration added to now
+     * @exception IOException failure to package token or no primary key
+     * @return new token
+     */
+    public JsonWebUserToken mint(final String issuer, final String user, final long nowInSecs, final long expiresAfter) throws IOException {
+        final Key key = this.primary;
+
+        if (key == null)
+        {
+            throw new IOException
+                ( "Keyring lacks primary key"
+                );
+        }
+
+        try
+        {
+            return new JsonWebUserToken(issuer, user, key.kid, key.headers, key.factory, nowInSecs, expiresAfter);
+        }
+        catch (Exception eX)
+        {
+            throw new IOException
+                ( "Unable to construct web token"
+                , eX
+                );
+        }
+    }
+
+    /**
+     * Unpacks and validates token with the key it names, or the legacy key if
+     * it names none.
+     * 
+     * @param token serialized jwt representation to be unpacked
+     * @param nowInSecs epoch time in secs
+     * @param mapper used for reading token payload params
+     * @return valid token or null if not valid
+     */
+    public JsonWebUserToken verify(final String token, final long nowInSecs, final ObjectMapper mapper) {
+        final String tokened = JsonWebUserToken.unwrap(token);
+        final JsonWebUserToken.Verified.Entry entry = JsonWebUserToken.recall(tokened, nowInSecs);
+
+        if (entry != null)
+        {
+            final Key key = this.resolve(entry.kid);
+
+            if (key != null && key.secretKey.equals(entry.secretKey) == true)
+            {
+                return new JsonWebUserToken(tokened, entry);
+            }
+        }
+
+        try
+        {
+            final JsonWebUserToken that = new JsonWebUserToken(tokened, mapper);
+            final Key key = this.resolve(that.getKeyed());
+
+            if (key != null && that.testIsValid(key.secretKey, key.factory, nowInSecs) == true)
+            {
+                return that;
+            }
+        }
+        catch (Exception eX)
+        {
+        }
+
+        return null;
+    }
+
+    private Key resolve(final String kid) {
+        return kid.equalsIgnoreCase("") == false ? this.keys.get(kid) : this.legacy;
+    }
+
+}
@@ -1,7 +1,11 @@
 package com.unowmo.microwrap;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.*;
 
 /**
@@ -12,33 +16,136 @@ import com.fasterxml.jackson.databind.*;
  *
  */
 public class JsonWebUserToken {
-    private String headers = "";
-    private String payload = "";
+    private String tokened = "";
     private String issuing = "";
     private String uniqued = "";
-    private String signing = "";
-    
-    static class Headers {
-        public String typ = "";
-        public String alg = "";
-        
-    }
+    private String keyed = "";
+    private long issued = 0;
+    private long expires = 0;
+    private int signed = 0;
+
+    /**
+     * Size-bounded cache of tokens already verified, keyed by signature, so
+     * that a token presented again within its lifetime is accepted without
+     * json parsing or hashing. Oldest entries are evicted first, and expired
+     * ones as they are found.
+     */
+    static class Verified {
+        private final LinkedHashMap<String, Entry> entries;
+        private final int limit;
+
+        static class Entry {
+            final String tokened;
+            final String secretKey;
+            final String kid;
+            final String uid;
+            final String iss;
+            final long iat;
+            final long exp;
+
+            Entry(final String tokened, final String secretKey, final String kid, final String uid, final String iss, final long iat, final long exp) {
+                this.tokened = tokened;
+                this.secretKey = secretKey;
+                this.kid = kid;
+                this.uid = uid;
+                this.iss = iss;
+                this.iat = iat;
+                this.exp = exp;
+            }
+
+        }
+
+        /**
+         * Finds entry for the exact token verified with the same secret key and
+         * still within its lifetime.
+         * 
+         * @param signing signature part of token
+         * @param tokened complete token
+         * @param secretKey base64 string of secret key for hashing
+         * @param nowInSecs epoch time in secs
+         * @return entry or null if not found
+         */
+        Entry lookup(final String signing, final String tokened, final String secretKey, final long nowInSecs) {
+            final Entry entry = this.lookup(signing, tokened, nowInSecs);
+
+            if (entry != null && entry.secretKey.equals(secretKey) == true)
+            {
+                return entry;
+            }
+
+            return null;
+        }
+
+        /**
+         * Finds entry for the exact token still within its lifetime, leaving the
+         * caller to check the key it was verified with.
+         * 
+         * @param signing signature part of token
+         * @param tokened complete token
+         * @param nowInSecs epoch time in secs
+         * @return entry or null if not found
+         */
+        synchronized Entry lookup(final String signing, final String tokened, final long nowInSecs) {
+            final Entry entry = this.entries.get(signing);
+
+            if (entry != null)
+            {
+                if (nowInSecs > entry.exp)
+                {
+                    this.entries.remove(signing);
+                }
+                else
+                if (entry.iat <= nowInSecs && Verified.matches(entry.tokened, tokened) == true)
+                {
+                    return entry;
+                }
+            }
+
+            return null;
+        }
+
+        synchronized void remember(final String signing, final Entry entry) {
+            // Removed first so that a token remembered again counts as newest.
+
+            this.entries.remove(signing);
+            this.entries.put(signing, entry);
+        }
+
+        /**
+         * Compares strings in time independent of where they first differ.
+         */
+        static boolean matches(final String a, final String b) {
+            if (a.length() != b.length())
+            {
+                return false;
+            }
+
+            int diff = 0;
+
+            for (int i = 0; i < a.length(); ++i)
+            {
+                diff |= a.charAt(i) ^ b.charAt(i);
+            }
+
+            return diff == 0;
+        }
+
+        Verified(final int limit) {
+            this.limit = limit;
+            this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, false) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                    return this.size() > Verified.this.limit;
+                }
+            };
+        }
 
-    static class Payload {
-        public String uid = "";
-        public String iss = "";
-        public int iat = 0;
-        public int exp = 0;
-        
     }
 
     public String getTokened() {
-        if (this.headers.equalsIgnoreCase("") == false && this.payload.equalsIgnoreCase("") == false)
-        {
-            return this.headers + "." + this.payload + "." + this.signing;
-        }
-        
-        return "";
+        return this.tokened;
     }
 
     public String getIssuing() {
@@ -49,6 +156,10 @@ public class JsonWebUserToken {
         return this.uniqued;
     }
 
+    public String getKeyed() {
+        return this.keyed;
+    }
+
     /**
      * Tests extracted elements against secrets-based signature and expiration.
      * 
@@ -58,28 +169,133 @@ public class JsonWebUserToken {
      * @return true if valid, otherwise false
      */
     public boolean testIsValid(final String secretKey, final Long nowInSecs, final ObjectMapper mapper) {
-        try (final StringHashSigner signer = new StringHashSigner(secretKey))
+        try
+        {
+            return this.testIsValid(secretKey, StringHashSigner.factory(secretKey), nowInSecs);
+        }
+        catch (IOException eX)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Tests extracted elements against signature by the given signers and the
+     * expiration.
+     * 
+     * @param secretKey base64 string of secret key for hashing
+     * @param factory signers using secret key
+     * @param nowInSecs epoch time in secs
+     * @return true if valid, otherwise false
+     */
+    boolean testIsValid(final String secretKey, final StringHashSigner.Factory factory, final long nowInSecs) {
+        if (this.signed <= 0)
+        {
+            return false;
+        }
+
+        final String signing = this.tokened.substring(this.signed + 1);
+
+        if (verified.lookup(signing, this.tokened, secretKey, nowInSecs) != null)
+        {
+            return true;
+        }
+
+        if (this.issued <= nowInSecs && nowInSecs <= this.expires)
         {
-            Base64.Decoder decoder = Base64.getDecoder();
-            
-            if (signer.sign(this.headers + "." + this.payload).replace('+', '-').replace('/', '_').equalsIgnoreCase(this.signing) == true)
+            try (final StringHashSigner signer = factory.acquire())
             {
-                Payload p = mapper.readValue
-                    ( decoder.decode(this.payload.replace('-', '+').replace('_', '/').getBytes("utf8"))
-                    , Payload.class
-                    );
-                
-                if (p.iat <= nowInSecs && nowInSecs <= p.exp)
+                final byte [] bytes = this.tokened.getBytes(StandardCharsets.US_ASCII);
+                final ByteBuffer given = Base64.getUrlDecoder().decode(ByteBuffer.wrap(bytes, this.signed + 1, bytes.length - this.signed - 1));
+                final byte [] wanted = signer.digest(bytes, 0, this.signed);
+
+                if (given.remaining() == wanted.length)
                 {
-                    return true;
+                    int diff = 0;
+
+                    for (int i = 0; i < wanted.length; ++i)
+                    {
+                        diff |= wanted[i] ^ given.get(i);
+                    }
+
+                    if (diff == 0)
+                    {
+                        verified.remember
+                            ( signing
+                            , new Verified.Entry
+                                ( this.tokened
+                                , secretKey
+                                , this.keyed
+                                , this.uniqued
+                                , this.issuing
+                                , this.issued
+                                , this.expires
+                                )
+                            );
+
+                        return true;
+                    }
                 }
             }
+            catch (Exception eX)
+            {
+            }
+        }
+        
+        return false;
+    }
+
+    /**
+     * Unpacks and validates token in one step, answering tokens verified before
+     * from cache without parsing or hashing.
+     * 
+     * @param token serialized jwt representation to be unpacked
+     * @param secretKey base64 string of secret key for hashing
+     * @param nowInSecs epoch time in secs
+     * @param mapper used for reading token payload params
+     * @return valid token or null if not valid
+     */
+    public static JsonWebUserToken verify(final String token, final String secretKey, final Long nowInSecs, final ObjectMapper mapper) {
+        final String tokened = JsonWebUserToken.unwrap(token);
+        final Verified.Entry entry = JsonWebUserToken.recall(tokened, nowInSecs);
+
+        if (entry != null && entry.secretKey.equals(secretKey) == true)
+        {
+            return new JsonWebUserToken(tokened, entry);
+        }
+
+        try
+        {
+            final JsonWebUserToken that = new JsonWebUserToken(tokened, mapper);
+
+            if (that.testIsValid(secretKey, nowInSecs, mapper) == true)
+            {
+                return that;
+            }
         }
         catch (Exception eX)
         {
         }
-        
-        return false;
+
+        return null;
+    }
+
+    /**
+     * Finds cached verification of the exact token within its lifetime.
+     * 
+     * @param tokened token without authorization scheme
+     * @param nowInSecs epoch time in secs
+     * @return entry or null if not found
+     */
+    static Verified.Entry recall(final String tokened, final long nowInSecs) {
+        final int signed = tokened.lastIndexOf('.');
+
+        if (signed > 0)
+        {
+            return verified.lookup(tokened.substring(signed + 1), tokened, nowInSecs);
+        }
+
+        return null;
     }
 
     /**
@@ -91,32 +307,205 @@ public class JsonWebUserToken {
      * @param expiresAfter interval duration added to now
      */
     public void allowExtension(final String secretKey, final Long nowInSecs, final Long expiresAfter) {
-        Base64.Encoder encoder = Base64.getEncoder();
-
         try
         {
-            this.headers = encoder.encodeToString
-                ( "{ ''typ'': ''JWT'', ''alg'': ''HS256'' }".replace("''", "\"").getBytes("utf8")
-                ).replace('+', '-').replace('/', '_');
+            this.mint(JsonWebUserToken.headers, StringHashSigner.factory(secretKey), nowInSecs, nowInSecs + expiresAfter);
+            this.keyed = "";
+        }
+        catch (Exception eX)
+        {
+        }
+    }
 
-            this.payload = encoder.encodeToString
-                ( String.format
-                    ( "{ ''uid'': ''%s'', ''iss'': ''%s'', ''iat'': %d, ''exp'': %d }"
-                    , this.uniqued
-                    , this.issuing
-                    , nowInSecs
-                    , nowInSecs + expiresAfter
-                    ).replace("''", "\"").getBytes("utf8")
-                ).replace('+', '-').replace('/', '_');
+    /**
+     * Signs current identity as a new token over the given encoded headers.
+     * 
+     * @param headers encoded header segment
+     * @param factory signers for hashing
+     * @param issuedAt epoch time in secs
+     * @param expiresAt epoch time in secs
+     * @exception IOException failure to sign token
+     */
+    void mint(final byte [] headers, final StringHashSigner.Factory factory, final long issuedAt, final long expiresAt) throws IOException {
+        final Minter minter = minters.get();
+
+        this.tokened = minter.mint(headers, factory, this.uniqued, this.issuing, issuedAt, expiresAt);
+        this.signed = minter.signed;
+        this.issued = issuedAt;
+        this.expires = expiresAt;
+    }
+
+    /**
+     * Container for processing.
+     * 
+     * Writes token json and encodings into buffers reused by the same thread,
+     * byte for byte as formatting "{ "uid": "%s", "iss": "%s", "iat": %d,
+     * "exp": %d }" and base64 encoding with url-safe characters would.
+     *
+     * Quotes, backslashes and control characters in the uid and iss are json
+     * escaped. Formerly values were formatted as given and any '' pair then
+     * turned into a quote, so tokens for such values differ, though those
+     * were never valid json and never verified.
+     */
+    static final class Minter {
+        private byte [] json = new byte[256];
+        private byte [] text = new byte[512];
+        private int length = 0;
+        int signed = 0;
+
+        String mint(final byte [] headers, final StringHashSigner.Factory factory, final String uid, final String iss, final long iat, final long exp) throws IOException {
+            this.length = 0;
 
-            try (final StringHashSigner signer = new StringHashSigner(secretKey))
+            this.ascii("{ \"uid\": \"");
+            this.utf8(uid);
+            this.ascii("\", \"iss\": \"");
+            this.utf8(iss);
+            this.ascii("\", \"iat\": ");
+            this.ascii(Long.toString(iat));
+            this.ascii(", \"exp\": ");
+            this.ascii(Long.toString(exp));
+            this.ascii(" }");
+
+            final int needed = headers.length + 1 + Minter.encoded(this.length) + 1 + Minter.encoded(32);
+
+            if (this.text.length < needed)
             {
-                this.signing = signer.sign(this.headers + "." + this.payload).replace('+', '-').replace('/', '_');
+                this.text = new byte[needed * 2];
             }
+
+            System.arraycopy(headers, 0, this.text, 0, headers.length);
+
+            int n = headers.length;
+
+            this.text[n++] = '.';
+
+            n = Minter.encode(this.json, this.length, this.text, n);
+
+            this.signed = n;
+
+            try (final StringHashSigner signer = factory.acquire())
+            {
+                final byte [] digest = signer.digest(this.text, 0, n);
+
+                this.text[n++] = '.';
+
+                n = Minter.encode(digest, digest.length, this.text, n);
+            }
+
+            return new String(this.text, 0, n, StandardCharsets.US_ASCII);
         }
-        catch (Exception eX)
-        {
+
+        private void ascii(final String value) {
+            this.reserve(value.length());
+
+            for (int i = 0; i < value.length(); ++i)
+            {
+                this.json[this.length++] = (byte) value.charAt(i);
+            }
         }
+
+        private void utf8(final String given) {
+            final String value = given != null ? given : "null";
+
+            this.reserve(value.length() * 6);
+
+            for (int i = 0; i < value.length(); ++i)
+            {
+                final char c = value.charAt(i);
+
+                if (c == '"' || c == '\\')
+                {
+                    this.json[this.length++] = (byte) '\\';
+                    this.json[this.length++] = (byte) c;
+                }
+                else
+                if (c < 0x20)
+                {
+                    this.json[this.length++] = (byte) '\\';
+                    this.json[this.length++] = (byte) 'u';
+                    this.json[this.length++] = (byte) '0';
+                    this.json[this.length++] = (byte) '0';
+                    this.json[this.length++] = hexits[c >> 4];
+                    this.json[this.length++] = hexits[c & 0xf];
+                }
+                else
+                if (c < 0x80)
+                {
+                    this.json[this.length++] = (byte) c;
+                }
+                else
+                if (c < 0x800)
+                {
+                    this.json[this.length++] = (byte) (0xc0 | (c >> 6));
+                    this.json[this.length++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else
+                if (Character.isHighSurrogate(c) == true && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)) == true)
+                {
+                    final int cp = Character.toCodePoint(c, value.charAt(++i));
+
+                    this.json[this.length++] = (byte) (0xf0 | (cp >> 18));
+                    this.json[this.length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    this.json[this.length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    this.json[this.length++] = (byte) (0x80 | (cp & 0x3f));
+                }
+                else
+                if (Character.isSurrogate(c) == true)
+                {
+                    this.json[this.length++] = (byte) '?';
+                }
+                else
+                {
+                    this.json[this.length++] = (byte) (0xe0 | (c >> 12));
+                    this.json[this.length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    this.json[this.length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void reserve(final int count) {
+            if (this.length + count > this.json.length)
+            {
+                this.json = Arrays.copyOf(this.json, (this.length + count) * 2);
+            }
+        }
+
+        static int encoded(final int count) {
+            return 4 * ((count + 2) / 3);
+        }
+
+        /**
+         * Encodes bytes as padded base64 with url-safe characters.
+         */
+        static int encode(final byte [] source, final int count, final byte [] target, int n) {
+            int i = 0;
+
+            for (; i + 2 < count; i += 3)
+            {
+                final int bits = (source[i] & 0xff) << 16 | (source[i + 1] & 0xff) << 8 | (source[i + 2] & 0xff);
+
+                target[n++] = alphabet[(bits >>> 18) & 0x3f];
+                target[n++] = alphabet[(bits >>> 12) & 0x3f];
+                target[n++] = alphabet[(bits >>> 6) & 0x3f];
+                target[n++] = alphabet[bits & 0x3f];
+            }
+
+            if (i < count)
+            {
+                final int bits = (source[i] & 0xff) << 16 | (i + 1 < count ? (source[i + 1] & 0xff) << 8 : 0);
+
+                target[n++] = alphabet[(bits >>> 18) & 0x3f];
+                target[n++] = alphabet[(bits >>> 12) & 0x3f];
+                target[n++] = i + 1 < count ? alphabet[(bits >>> 6) & 0x3f] : (byte) '=';
+                target[n++] = '=';
+            }
+
+            return n;
+        }
+
+        private final static byte [] hexits = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        private final static byte [] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
     }
 
     /**
@@ -130,31 +519,12 @@ public class JsonWebUserToken {
      * @exception IOException failure to package token
      */
     public JsonWebUserToken(final String issuer, final String user, final String secretKey, final Long nowInSecs, final Long expiresAfter) throws IOException {
-        Base64.Encoder encoder = Base64.getEncoder();
-        
         try
         {
-            this.headers = encoder.encodeToString
-                ( "{ ''typ'': ''JWT'', ''alg'': ''HS256'' }".replace("''", "\"").getBytes("utf8")
-                ).replace('+', '-').replace('/', '_');
-
-            this.payload = encoder.encodeToString
-                ( String.format
-                    ( "{ ''uid'': ''%s'', ''iss'': ''%s'', ''iat'': %d, ''exp'': %d }"
-                    , user
-                    , issuer
-                    , nowInSecs
-                    , nowInSecs + expiresAfter
-                    ).replace("''", "\"").getBytes("utf8")
-                ).replace('+', '-').replace('/', '_');
-
-            try (final StringHashSigner signer = new StringHashSigner(secretKey))
-            {
-                this.signing = signer.sign(this.headers + "." + this.payload).replace('+', '-').replace('/', '_');
-            }
-            
             this.issuing = issuer;
             this.uniqued = user;
+
+            this.mint(JsonWebUserToken.headers, StringHashSigner.factory(secretKey), nowInSecs, nowInSecs + expiresAfter);
         }
         catch (Exception eX)
         {
@@ -165,6 +535,42 @@ public class JsonWebUserToken {
         }
     }
 
+    /**
+     * Construct keyed.
+     * 
+     * @param issuer application-specific label of issuing service
+     * @param user application-specific user identity code
+     * @param keyed identity of key signing token
+     * @param headers encoded header segment naming key
+     * @param factory signers using key
+     * @param nowInSecs epoch time in secs
+     * @param expiresAfter interval duration added to now
+     * @exception IOException failure to package token
+     */
+    JsonWebUserToken(final String issuer, final String user, final String keyed, final byte [] headers, final StringHashSigner.Factory factory, final long nowInSecs, final long expiresAfter) throws IOException {
+        this.issuing = issuer;
+        this.uniqued = user;
+        this.keyed = keyed;
+
+        this.mint(headers, factory, nowInSecs, nowInSecs + expiresAfter);
+    }
+
+    /**
+     * Construct cached.
+     * 
+     * @param tokened token without authorization scheme
+     * @param entry cached verification of token
+     */
+    JsonWebUserToken(final String tokened, final Verified.Entry entry) {
+        this.tokened = tokened;
+        this.signed = tokened.lastIndexOf('.');
+        this.issuing = entry.iss;
+        this.uniqued = entry.uid;
+        this.keyed = entry.kid;
+        this.issued = entry.iat;
+        this.expires = entry.exp;
+    }
+
     /**
      * Construct default.
      * 
@@ -173,37 +579,153 @@ public class JsonWebUserToken {
      * @exception IOException failure to unpack token
      */
     public JsonWebUserToken(final String token, final ObjectMapper mapper) throws IOException {
-        final String [] parts = (token != null ? (token.indexOf(' ') > 0 ? token.split(" ")[1] : token) : "").split("\\.");
+        final String tokened = JsonWebUserToken.unwrap(token);
+        final int payload = tokened.indexOf('.');
+        final int signed = payload > 0 ? tokened.indexOf('.', payload + 1) : -1;
 
-        if (parts.length == 3)
+        if (signed > 0 && signed + 1 < tokened.length() && tokened.indexOf('.', signed + 1) < 0)
         {
-            Base64.Decoder decoder = Base64.getDecoder();
+            // Works on offsets into the token bytes, reading the few claims we
+            // care about with the streaming parser rather than binding beans.
+            // Nested objects and arrays are skipped whole, even under a known
+            // claim, so their fields are never read as top-level claims.
+
+            final byte [] bytes = tokened.getBytes(StandardCharsets.US_ASCII);
+            final Base64.Decoder decoder = Base64.getUrlDecoder();
 
-            if (parts[0].equalsIgnoreCase("") == false)
+            try
             {
-                Headers h = mapper.readValue
-                    ( decoder.decode(parts[0].replace('-', '+').replace('_', '/').getBytes("utf8"))
-                    , Headers.class
-                    );
-                
-                if (h.typ.equalsIgnoreCase("jwt") == true && h.alg.equalsIgnoreCase("hs256") == true)
+                final ByteBuffer h = decoder.decode(ByteBuffer.wrap(bytes, 0, payload));
+                String typ = "";
+                String alg = "";
+                String kid = "";
+
+                try (final JsonParser parser = mapper.getFactory().createParser(h.array(), h.arrayOffset() + h.position(), h.remaining()))
+                {
+                    if (parser.nextToken() == JsonToken.START_OBJECT)
+                    {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME)
+                        {
+                            final String field = parser.getCurrentName();
+                            final JsonToken value = parser.nextToken();
+
+                            if (value != null && value.isStructStart() == true)
+                            {
+                                parser.skipChildren();
+                            }
+                            else
+                            if (field.equals("typ") == true)
+                            {
+                                typ = parser.getValueAsString("");
+                            }
+                            else
+                            if (field.equals("alg") == true)
+                            {
+                                alg = parser.getValueAsString("");
+                            }
+                            else
+                            if (field.equals("kid") == true)
+                            {
+                                kid = parser.getValueAsString("");
+                            }
+                        }
+                    }
+                }
+
+                if (typ.equalsIgnoreCase("jwt") == true && alg.equalsIgnoreCase("hs256") == true)
                 {
-                    Payload p = mapper.readValue
-                        ( decoder.decode(parts[1].replace('-', '+').replace('_', '/').getBytes("utf8"))
-                        , Payload.class
-                        );
+                    final ByteBuffer p = decoder.decode(ByteBuffer.wrap(bytes, payload + 1, signed - payload - 1));
+                    String uid = "";
+                    String iss = "";
+                    long iat = 0;
+                    long exp = 0;
 
-                    if (p.uid.equalsIgnoreCase("") == false)
+                    try (final JsonParser parser = mapper.getFactory().createParser(p.array(), p.arrayOffset() + p.position(), p.remaining()))
                     {
-                        this.headers = parts[0];
-                        this.payload = parts[1];
-                        this.signing = parts[2];
+                        if (parser.nextToken() == JsonToken.START_OBJECT)
+                        {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME)
+                            {
+                                final String field = parser.getCurrentName();
+                                final JsonToken value = parser.nextToken();
 
-                        this.uniqued = p.uid;
+                                if (value != null && value.isStructStart() == true)
+                                {
+                                    parser.skipChildren();
+                                }
+                                else
+                                if (field.equals("uid") == true)
+                                {
+                                    uid = parser.getValueAsString("");
+                                }
+                                else
+                                if (field.equals("iss") == true)
+                                {
+                                    iss = parser.getValueAsString("");
+                                }
+                                else
+                                if (field.equals("iat") == true)
+                                {
+                                    iat = parser.getValueAsLong(0);
+                                }
+                                else
+                                if (field.equals("exp") == true)
+                                {
+                                    exp = parser.getValueAsLong(0);
+                                }
+                            }
+                        }
+                    }
+
+                    if (uid.equalsIgnoreCase("") == false)
+                    {
+                        this.tokened = tokened;
+                        this.signed = signed;
+
+                        this.issuing = iss;
+                        this.uniqued = uid;
+                        this.keyed = kid;
+                        this.issued = iat;
+                        this.expires = exp;
                     }
                 }
             }
+            catch (IllegalArgumentException eX)
+            {
+                throw new IOException
+                    ( "Unable to decode web token"
+                    , eX
+                    );
+            }
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Strips any authorization scheme, such as "Bearer", from a token.
+     * 
+     * @param token serialized jwt representation, optionally prefixed
+     * @return token alone
+     */
+    static String unwrap(final String token) {
+        if (token != null)
+        {
+            final int space = token.indexOf(' ');
+
+            if (space > 0)
+            {
+                final int after = token.indexOf(' ', space + 1);
+
+                return after > 0 ? token.substring(space + 1, after) : token.substring(space + 1);
+            }
+
+            return token;
+        }
+
+        return "";
+    }
+
+    private final static Verified verified = new Verified(4096);
+    private final static ThreadLocal<Minter> minters = ThreadLocal.withInitial(Minter::new);
+    private final static byte [] headers = Base64.getUrlEncoder().encode("{ \"typ\": \"JWT\", \"alg\": \"HS256\" }".getBytes(StandardCharsets.UTF_8));
+
+}
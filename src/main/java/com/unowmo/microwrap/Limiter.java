@@ -0,0 +1,115 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+
+/**
+ * Adaptive limit on requests running at once, grown additively while latency
+ * holds near its observed baseline and cut multiplicatively when latency
+ * climbs well past it or requests run out of time, so that overload is
+ * pushed back on before tail latency grows. A limiter may instead be told
+ * whether each request ran congested, as judged against another limiter's
+ * baseline.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+class Limiter {
+    private final int minimum;
+    private final int maximum;
+    private final long tolerance;
+    private final long floor;
+    private double limit;
+    private double baseline = 0;
+    private int inflight = 0;
+    private long rejected = 0;
+
+    synchronized boolean acquire() {
+        if (this.inflight >= (int) this.limit)
+        {
+            this.rejected += 1;
+
+            return false;
+        }
+
+        this.inflight += 1;
+
+        return true;
+    }
+
+    synchronized void cancel() {
+        this.inflight -= 1;
+    }
+
+    /**
+     * Releases a request, judging congestion against this limiter's own
+     * latency baseline.
+     * 
+     * @param latency milliseconds the request ran
+     * @param dropped true if the request ran out of time
+     * @return true if the request ran congested
+     */
+    synchronized boolean release(final long latency, final boolean dropped) {
+        // Baseline tracks the lowest latency seen, drifting slowly up so it
+        // follows lasting changes in the work a command does.
+
+        if (this.baseline == 0 || latency < this.baseline)
+        {
+            this.baseline = Math.max(1, latency);
+        }
+        else
+        {
+            this.baseline += (latency - this.baseline) / 1000.0;
+        }
+
+        final boolean congested = dropped == true || (latency > this.floor && latency * 100 > this.baseline * this.tolerance);
+
+        this.release(congested);
+
+        return congested;
+    }
+
+    /**
+     * Releases a request already judged for congestion.
+     * 
+     * @param congested true if the request ran congested
+     */
+    synchronized void release(final boolean congested) {
+        final boolean saturated = this.inflight * 2 >= (int) this.limit;
+
+        this.inflight -= 1;
+
+        if (congested == true)
+        {
+            this.limit = Math.max(this.minimum, this.limit * 0.9);
+        }
+        else
+        if (saturated == true)
+        {
+            this.limit = Math.min(this.maximum, this.limit + 1.0 / this.limit);
+        }
+    }
+
+    synchronized Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new TreeMap<String, Object>();
+
+        snapshot.put("limit", (int) this.limit);
+        snapshot.put("inflight", this.inflight);
+        snapshot.put("rejected", this.rejected);
+
+        if (this.baseline > 0)
+        {
+            snapshot.put("baselineMillis", (long) this.baseline);
+        }
+
+        return snapshot;
+    }
+
+    Limiter(final int initial, final int minimum, final int maximum, final long tolerance, final long floor) {
+        this.minimum = Math.max(1, minimum);
+        this.maximum = Math.max(this.minimum, maximum);
+        this.limit = Math.min(this.maximum, Math.max(this.minimum, initial));
+        this.tolerance = Math.max(100, tolerance);
+        this.floor = Math.max(0, floor);
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Global limit on requests running at once along with a limit per command,
+ * both of which admit a request. The global limit keeps no latency baseline
+ * of its own, since one baseline across fast and slow commands would read
+ * every slow request as congestion; it adapts to requests as their command's
+ * limit judged them.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+class Limits {
+    private final ConcurrentMap<String, Limiter> commands = new ConcurrentHashMap<String, Limiter>();
+    private final Limiter global;
+    private final int initial;
+    private final int minimum;
+    private final int maximum;
+    private final long tolerance;
+    private final long floor;
+
+    /**
+     * Admits a request for the command if under both limits.
+     * 
+     * @param command request command
+     * @return command limit to release on completion or null if rejected
+     */
+    Limiter admit(final String command) {
+        if (this.global.acquire() == false)
+        {
+            return null;
+        }
+
+        final Limiter limiter = this.commands.computeIfAbsent
+            ( command
+            , (key) -> new Limiter(this.initial, this.minimum, this.maximum, this.tolerance, this.floor)
+            );
+
+        if (limiter.acquire() == false)
+        {
+            this.global.cancel();
+
+            return null;
+        }
+
+        return limiter;
+    }
+
+    void release(final Limiter limiter, final long latency, final boolean dropped) {
+        this.global.release(limiter.release(latency, dropped));
+    }
+
+    void cancel(final Limiter limiter) {
+        limiter.cancel();
+
+        this.global.cancel();
+    }
+
+    Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new TreeMap<String, Object>();
+        final Map<String, Object> commands = new TreeMap<String, Object>();
+
+        for (final Map.Entry<String, Limiter> entry : this.commands.entrySet())
+        {
+            commands.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        snapshot.put("global", this.global.snapshot());
+        snapshot.put("commands", commands);
+
+        return snapshot;
+    }
+
+    Limits(final MultiEndpointApi.Params params) {
+        this.initial = (int) params.getOrDefault("ms_limit_initial", 20);
+        this.minimum = (int) params.getOrDefault("ms_limit_min", 1);
+        this.maximum = (int) params.getOrDefault("ms_limit_max", 200);
+        this.tolerance = params.getOrDefault("ms_limit_tolerance", 200);
+        this.floor = params.getOrDefault("ms_limit_latency_floor", 50);
+        this.global = new Limiter
+            ( (int) params.getOrDefault("ms_limit_global_initial", 100)
+            , this.minimum
+            , (int) params.getOrDefault("ms_limit_global_max", 1000)
+            , this.tolerance
+            , this.floor
+            );
+    }
+
+}
@@ -2,11 +2,14 @@ package com.unowmo.microwrap;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import com.fasterxml.jackson.annotation.*;
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.annotation.*;
+import com.fasterxml.jackson.dataformat.cbor.*;
+import com.fasterxml.jackson.dataformat.smile.*;
 import com.amazonaws.services.lambda.*;
 import com.amazonaws.services.lambda.model.*;
 import com.amazonaws.services.lambda.runtime.*;
@@ -20,6 +23,14 @@ import com.amazonaws.services.lambda.runtime.*;
  */
 public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerContext, W extends MultiEndpointApi.ResourceWrapping<T>, R extends MultiEndpointApi.WrappedResources<T>> implements RequestStreamHandler {
     private final Handled<T, R> [] hooks; 
+    private static ExecutorService taskWorkers = null;
+    private static ScheduledExecutorService watchdogs = null;
+    private volatile ResultCache results = null;
+    private volatile WrapperPool wrappers = null;
+    private volatile Limits limits = null;
+    private volatile IdempotencyStore completed = null;
+    private boolean completedUnavailable = false;
+    private final ConcurrentMap<String, CompletableFuture<Returns>> inflight = new ConcurrentHashMap<String, CompletableFuture<Returns>>();
 
     /**
      * Base container for implementations to wrap request handling with resource
@@ -29,201 +40,2390 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
 
         public abstract void onCommit(final T context, final Date started) throws IOException;
 
+        /**
+         * Whether this wrapper is kept for later requests once a request it
+         * served succeeds, rather than being closed.
+         * 
+         * @return true to pool across warm invocations
+         */
+        public boolean isPooled() {
+            return false;
+        }
+
+        /**
+         * Checks a pooled wrapper is still usable before handing it to another
+         * request, such as by testing its connection. Invalid ones are closed.
+         * 
+         * @param context container context of the request borrowing it
+         * @return true if usable
+         * @throws IOException raised on any error, treated as invalid
+         */
+        public boolean validate(final T context) throws IOException {
+            return true;
+        }
+
+        /**
+         * Clears request state from a wrapper being returned to the pool.
+         * 
+         * @throws IOException raised on any error, closing the wrapper instead
+         */
+        public void reset() throws IOException {
+        }
+
+    }
+
+    /**
+     * Base container implementation for holding onto wrapped resources alive
+     * during request processing and managed by the wrapper. 
+     */
+    public static abstract class WrappedResources<T extends MultiEndpointApi.ContainerContext> {
+
+        public abstract void onCommit(final T context, final Returns returns, final Date started) throws IOException;
+
+    }
+
+    /**
+     * Base container implementation for holding onto request-specific values
+     * and facilities as part of normal request handling. Container should
+     * define a default constructor. 
+     */
+    public static class ContainerContext {
+        private List<Entry> events = new ArrayList<Entry>();
+        Dispatcher dispatcher = null;
+        
+        public Params params = new Params();
+        public Tracer logger = new Tracer();
+        public TaskScope tasks = null;
+        public JsonWebUserToken identity = null;
+        public String region = "";
+        public String config = "";
+        public String detail = "";
+        public long deadline = 0;
+
+        private static class Entry {
+            
+            final String service;
+            final String qualify;
+            final String payload;
+            
+            Entry(final String service, final String qualify, final String payload) {
+                this.service = service;
+                this.qualify = qualify;
+                this.payload = payload;
+            }
+
+        }
+        
+        public void queueRequest(final String serviceName, final String qualifier, final String payload) {
+            this.events.add(new Entry(serviceName, qualifier, payload));
+        }
+
+        /**
+         * Whether event dispatch waits on the wrapper commit when commits
+         * overlap.
+         * 
+         * @return true to commit after earlier phases
+         */
+        public boolean commitsInOrder() {
+            return false;
+        }
+
+        /**
+         * Time left before the request deadline, by which handling should wrap
+         * up so the response can still be written.
+         * 
+         * @return milliseconds left or max value when there is no deadline
+         */
+        public long remainingMillis() {
+            return this.deadline > 0 ? this.deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+        }
+
+        void onCommit(final Date started) throws IOException {
+        	if (this.dispatcher == null)
+        	{
+        		return;
+        	}
+
+            if (this.events.isEmpty() == true)
+            {
+                return;
+            }
+            
+            try
+            {
+                for (int i = 0; i < this.events.size(); i++)
+                {
+                    final Entry entry = this.events.get(i);
+
+                    if (this.remainingMillis() <= 0)
+                    {
+                        counters.add("deadline.dropped", this.events.size() - i);
+
+                        throw Failure.deadlineEvents();
+                    }
+
+                    this.dispatcher.dispatch
+                        ( this.region
+                        , entry.service
+                        , entry.qualify
+                        , entry.payload
+                        );
+                }
+            }
+            finally
+            {
+                this.events.clear();
+            }
+        }
+
+    }
+
+    /**
+     * Interface for processing. Delivers events queued during request handling
+     * once the request commits.
+     */
+    public static interface Dispatcher {
+
+        void dispatch(final String region, final String service, final String qualify, final String payload) throws IOException;
+
+    }
+
+    /**
+     * Container for processing. Invokes queued events asynchronously as lambda
+     * functions with one client built per region.
+     */
+    private static class Invoker implements Dispatcher {
+        private final ConcurrentMap<String, AWSLambda> clients = new ConcurrentHashMap<String, AWSLambda>();
+
+        @Override
+        public void dispatch(final String region, final String service, final String qualify, final String payload) throws IOException {
+            AWSLambda lam = this.clients.get(region);
+
+            if (lam == null)
+            {
+                final AWSLambda created = AWSLambdaClientBuilder.standard().withRegion(region).build();
+
+                if ((lam = this.clients.putIfAbsent(region, created)) == null)
+                {
+                    lam = created;
+                }
+                else
+                {
+                    created.shutdown();
+                }
+            }
+
+            lam.invoke
+                ( new InvokeRequest()
+                    .withFunctionName(service)
+                    .withQualifier(qualify)
+                    .withInvocationType(InvocationType.Event)
+                    .withPayload
+                        ( payload
+                        )
+                );
+        }
+
+    }
+
+    /**
+     * Simple logger wrapper for tracing activity during request processing.
+     */
+    public static class Tracer {
+        private final LambdaLogger delegate;
+
+        public Tracer log(final String message) {
+            if (this.delegate != null)
+            {
+                this.delegate.log("(" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + ") " + (message != null ? message : "null"));
+            }
+
+            return this;
+        }
+    
+        private Tracer(final LambdaLogger delegate) {
+            this.delegate = delegate;
+        }
+
+        private Tracer() {
+            this.delegate = null;
+        }
+        
+    }
+
+    /**
+     * Simple environment caching of passed or specified process parameters.
+     */
+    public static class Params {
+        private final Map<String, String> map = new HashMap<String, String>();
+
+        public String getOrDefault(final String key, final String defaultValue) {
+            return this.map.getOrDefault(key.toLowerCase(), defaultValue);
+        }
+        
+        public long getOrDefault(final String key, final long defaultValue) {
+            final String value = this.map.get(key.toLowerCase());
+
+            if (value != null)
+            {
+                try
+                {
+                    return Long.parseLong(value.trim());
+                }
+                catch (NumberFormatException eX)
+                {
+                }
+            }
+
+            return defaultValue;
+        }
+
+        public boolean getOrDefault(final String key, final boolean defaultValue) {
+            final String value = this.map.get(key.toLowerCase());
+
+            if (value != null)
+            {
+                if (value.trim().equalsIgnoreCase("true") == true || value.trim().equals("1") == true)
+                {
+                    return true;
+                }
+
+                if (value.trim().equalsIgnoreCase("false") == true || value.trim().equals("0") == true)
+                {
+                    return false;
+                }
+            }
+
+            return defaultValue;
+        }
+
+        public void add(final String key, final String value) {
+            if (key != null && value != null)
+            {
+                this.map.put(key.toLowerCase(), value);
+            }
+        }
+
+    }
+
+    /**
+     * Request-scoped facility for running sub-tasks in parallel on the shared
+     * task executor. At most a limited number of sub-tasks run at once, with
+     * the rest waiting their turn. Anything still outstanding is cancelled
+     * when a sub-task being joined fails or the request ends.
+     */
+    public static class TaskScope implements AutoCloseable {
+        private final List<Forked<?>> forked = new ArrayList<Forked<?>>();
+        private final Deque<Forked<?>> waiting = new ArrayDeque<Forked<?>>();
+        private final CompletableFuture<Void> failed = new CompletableFuture<Void>();
+        private final ExecutorService workers;
+        private final int limit;
+        private int running = 0;
+        private boolean closed = false;
+        volatile long deadline = 0;
+
+        private class Forked<V> extends CompletableFuture<V> implements Runnable {
+            private final AtomicBoolean started = new AtomicBoolean();
+            private final Callable<V> task;
+            private Future<?> submitted = null;
+
+            @Override
+            public void run() {
+                if (this.started.compareAndSet(false, true) == true)
+                {
+                    try
+                    {
+                        this.complete(this.task.call());
+                    }
+                    catch (Throwable eX)
+                    {
+                        this.completeExceptionally(eX);
+                    }
+                    finally
+                    {
+                        TaskScope.this.release();
+                    }
+                }
+            }
+
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+                if (this.started.compareAndSet(false, true) == true)
+                {
+                    TaskScope.this.forget(this);
+                }
+                else
+                {
+                    synchronized (TaskScope.this)
+                    {
+                        if (this.submitted != null)
+                        {
+                            this.submitted.cancel(true);
+                        }
+                    }
+                }
+
+                return cancelled;
+            }
+
+            Forked(final Callable<V> task) {
+                this.task = task;
+            }
+
+        }
+
+        /**
+         * Starts the given sub-task, or queues it until running sub-tasks fall
+         * below the scope limit.
+         * 
+         * @param task work to run
+         * @return stage completing with result of the work
+         */
+        public <V> CompletableFuture<V> fork(final Callable<V> task) {
+            final Forked<V> fork = new Forked<V>(task);
+            boolean closed;
+
+            fork.whenComplete
+                ( (value, failure) -> {
+                    if (failure != null && fork.isCancelled() == false)
+                    {
+                        this.failed.completeExceptionally(failure);
+                    }
+                }
+                );
+
+            synchronized (this)
+            {
+                if ((closed = this.closed) == false)
+                {
+                    this.forked.add(fork);
+
+                    if (this.running < this.limit)
+                    {
+                        this.running += 1;
+                        fork.submitted = this.workers.submit(fork);
+                    }
+                    else
+                    {
+                        this.waiting.add(fork);
+                    }
+                }
+            }
+
+            if (closed == true)
+            {
+                fork.cancel(true);
+            }
+
+            counters.count("tasks.forked");
+
+            return fork;
+        }
+
+        /**
+         * Waits on all sub-tasks forked so far, cancelling the remainder as soon
+         * as any one of them fails or the request deadline passes.
+         * 
+         * @throws IOException raised on sub-task failure or timeout
+         */
+        public void join() throws IOException {
+            final CompletableFuture<?> [] pending;
+
+            synchronized (this)
+            {
+                pending = this.forked.toArray(new CompletableFuture<?>[this.forked.size()]);
+            }
+
+            try
+            {
+                final CompletableFuture<Object> joined = CompletableFuture.anyOf(CompletableFuture.allOf(pending), this.failed);
+
+                if (this.deadline > 0)
+                {
+                    joined.get(Math.max(0, this.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                else
+                {
+                    joined.get();
+                }
+            }
+            catch (TimeoutException eX)
+            {
+                counters.count("deadline.tasks");
+
+                this.close();
+
+                throw Failure.deadlineTasks();
+            }
+            catch (InterruptedException eX)
+            {
+                Thread.currentThread().interrupt();
+
+                this.close();
+
+                throw new IOException
+                    ( "Interrupted waiting on sub-tasks"
+                    , eX
+                    );
+            }
+            catch (ExecutionException | CancellationException eX)
+            {
+                this.close();
+
+                if (eX.getCause() instanceof IOException)
+                {
+                    throw (IOException) eX.getCause();
+                }
+
+                throw new Failure
+                    ( Fault.HANDLER
+                    , "Sub-task failed"
+                    , eX.getCause() != null ? eX.getCause() : eX
+                    );
+            }
+        }
+
+        /**
+         * Forks all given sub-tasks and joins them, returning their results in
+         * the same order.
+         * 
+         * @param tasks work to run
+         * @return results of the work
+         * @throws IOException raised on sub-task failure
+         */
+        public <V> List<V> forkJoin(final Collection<? extends Callable<V>> tasks) throws IOException {
+            final List<CompletableFuture<V>> forks = new ArrayList<CompletableFuture<V>>(tasks.size());
+            final List<V> values = new ArrayList<V>(tasks.size());
+
+            for (final Callable<V> task : tasks)
+            {
+                forks.add(this.fork(task));
+            }
+
+            this.join();
+
+            for (final CompletableFuture<V> fork : forks)
+            {
+                values.add(fork.join());
+            }
+
+            return values;
+        }
+
+        /**
+         * Cancels any sub-task still waiting or running.
+         */
+        @Override
+        public void close() {
+            final List<Forked<?>> outstanding;
+
+            synchronized (this)
+            {
+                this.closed = true;
+
+                outstanding = new ArrayList<Forked<?>>(this.forked);
+            }
+
+            for (final Forked<?> fork : outstanding)
+            {
+                if (fork.isDone() == false && fork.cancel(true) == true)
+                {
+                    counters.count("tasks.cancelled");
+                }
+            }
+        }
+
+        private synchronized void release() {
+            final Forked<?> next = this.waiting.poll();
+
+            if (next != null && this.closed == false && this.failed.isDone() == false)
+            {
+                next.submitted = this.workers.submit(next);
+            }
+            else
+            {
+                this.running -= 1;
+            }
+        }
+
+        private synchronized void forget(final Forked<?> fork) {
+            if (this.waiting.remove(fork) == false && fork.submitted != null)
+            {
+                fork.submitted.cancel(false);
+
+                this.release();
+            }
+        }
+
+        /**
+         * Construct default.
+         * 
+         * @param params sizing parameters for the shared task executor
+         * @param limit maximum number of sub-tasks running at once
+         */
+        public TaskScope(final Params params, final int limit) {
+            this.workers = taskWorkers(params);
+            this.limit = Math.max(1, limit);
+        }
+
+    }
+
+    /**
+     * Hands out the container-wide executor running sub-tasks of all requests,
+     * using virtual threads where the jdk offers them (unless "MS_TASKS_VIRTUAL"
+     * is false) and otherwise a pool bounded by "MS_TASKS_THREADS".
+     * 
+     * @param params sizing parameters used on first call
+     * @return shared executor
+     */
+    private static synchronized ExecutorService taskWorkers(final Params params) {
+        if (taskWorkers == null)
+        {
+            if (params.getOrDefault("ms_tasks_virtual", true) == true)
+            {
+                try
+                {
+                    taskWorkers = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                }
+                catch (Exception eX)
+                {
+                }
+            }
+
+            if (taskWorkers == null)
+            {
+                final int threads = (int) Math.max(1, params.getOrDefault("ms_tasks_threads", Math.max(8, 2 * java.lang.Runtime.getRuntime().availableProcessors())));
+                final AtomicInteger counter = new AtomicInteger();
+                final ThreadPoolExecutor pool = new ThreadPoolExecutor
+                    ( threads
+                    , threads
+                    , 60
+                    , TimeUnit.SECONDS
+                    , new LinkedBlockingQueue<Runnable>()
+                    , (runnable) -> {
+                        final Thread thread = new Thread(runnable, "microwrap-task-" + counter.incrementAndGet());
+
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                    );
+
+                pool.allowCoreThreadTimeOut(true);
+
+                taskWorkers = pool;
+            }
+        }
+
+        return taskWorkers;
+    }
+
+    /**
+     * Hands out the container-wide timer interrupting hooks still running at
+     * their request deadline.
+     * 
+     * @return shared timer
+     */
+    private static synchronized ScheduledExecutorService watchdogs() {
+        if (watchdogs == null)
+        {
+            final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor
+                ( 1
+                , (runnable) -> {
+                    final Thread thread = new Thread(runnable, "microwrap-watchdog");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+                );
+
+            timer.setRemoveOnCancelPolicy(true);
+
+            watchdogs = timer;
+        }
+
+        return watchdogs;
+    }
+
+    /**
+     * Hands out the result cache of cacheable hooks, bounded by entry count
+     * ("MS_CACHE_ENTRIES") and by serialized bytes ("MS_CACHE_BYTES").
+     * 
+     * @param params sizing parameters used on first call
+     * @return result cache
+     */
+    private synchronized ResultCache resultCache(final Params params) {
+        if (this.results == null)
+        {
+            this.results = new ResultCache
+                ( (int) Math.max(1, params.getOrDefault("ms_cache_entries", 1024))
+                , Math.max(1, params.getOrDefault("ms_cache_bytes", 64L * 1024 * 1024))
+                );
+        }
+
+        return this.results;
+    }
+
+    /**
+     * Derives the key identifying a request from the command, the verified
+     * identity if any, and a hash of the request with object fields in sorted
+     * order.
+     * 
+     * @param handled hook matching the request command
+     * @param identity verified identity or null if none
+     * @param posting decoded request
+     * @return request key
+     * @throws IOException raised on any error
+     */
+    private static String requestKeyOf(final Handled<?, ?> handled, final JsonWebUserToken identity, final Posting posting) throws IOException {
+        final byte [] normalized = canonical.writeValueAsBytes
+            ( mapper.readValue(posting.request.isEmpty() == true ? "null" : posting.request, Object.class)
+            );
+
+        try
+        {
+            return handled.command.toLowerCase()
+                + "\n" + (identity != null ? identity.getIssuing() + "\n" + identity.getUniqued() : "\n")
+                + "\n" + Base64.getEncoder().encodeToString(java.security.MessageDigest.getInstance("SHA-256").digest(normalized));
+        }
+        catch (java.security.NoSuchAlgorithmException eX)
+        {
+            throw new IOException
+                ( "Unable to hash cached request"
+                , eX
+                );
+        }
+    }
+
+    /**
+     * Shared facility. Opens the idempotency store on first use, configured
+     * from the first request's params, and shares it with any other instance
+     * given the same file. A store that fails to open is not tried again.
+     * 
+     * @param params request params
+     * @param logger logging facility
+     * @return idempotency store or null if unavailable
+     */
+    private synchronized IdempotencyStore idempotencyStore(final Params params, final Tracer logger) {
+        if (this.completed == null && this.completedUnavailable == false)
+        {
+            final File file = new File(params.getOrDefault("ms_idempotency_file", new File(System.getProperty("java.io.tmpdir"), "microwrap-idempotency.map").getPath()));
+
+            try
+            {
+                this.completed = idempotencyStores.computeIfAbsent
+                    ( file.getAbsolutePath()
+                    , (path) -> {
+                        try
+                        {
+                            return new IdempotencyStore
+                                ( file
+                                , (int) Math.min(Integer.MAX_VALUE - 8, Math.max(64 * 1024, params.getOrDefault("ms_idempotency_bytes", 8L * 1024 * 1024)))
+                                , TimeUnit.SECONDS.toMillis(Math.max(1, params.getOrDefault("ms_idempotency_ttl", 3600)))
+                                , (int) Math.max(0, Math.min(Integer.MAX_VALUE - 8, params.getOrDefault("ms_idempotency_record_bytes", 64 * 1024)))
+                                );
+                        }
+                        catch (IOException eX)
+                        {
+                            throw new UncheckedIOException(eX);
+                        }
+                    }
+                    );
+            }
+            catch (UncheckedIOException eX)
+            {
+                counters.count("idempotency.unavailable");
+
+                this.completedUnavailable = true;
+
+                logger.log
+                    ( "idempotency store unavailable because " + ("" + eX.getCause().getMessage()).toLowerCase()
+                    );
+            }
+        }
+
+        return this.completed;
+    }
+
+    /**
+     * Container for processing. Copies what is written through to the target,
+     * giving up on the copy once it grows past the limit.
+     */
+    private static class Captured extends OutputStream {
+        private final OutputStream target;
+        private final long limit;
+        byte [] buffer = new byte[8 * 1024];
+        int count = 0;
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.write(new byte [] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte [] b, final int offset, final int len) throws IOException {
+            this.target.write(b, offset, len);
+
+            if (this.buffer != null)
+            {
+                if (this.count + len > this.limit)
+                {
+                    this.buffer = null;
+                }
+                else
+                {
+                    if (this.count + len > this.buffer.length)
+                    {
+                        this.buffer = Arrays.copyOf(this.buffer, (int) Math.min(this.limit, Math.max(this.buffer.length * 2L, this.count + len)));
+                    }
+
+                    System.arraycopy(b, offset, this.buffer, this.count, len);
+                    this.count += len;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.target.flush();
+        }
+
+        Captured(final OutputStream target, final long limit) {
+            this.target = target;
+            this.limit = Math.min(limit, Integer.MAX_VALUE - 8);
+        }
+
+    }
+
+    /**
+     * Hands out the pool of wrappers kept across warm invocations, bounded by
+     * "MS_WRAPPER_POOL_SIZE" idle wrappers each kept at most for
+     * "MS_WRAPPER_POOL_IDLE" seconds.
+     * 
+     * @param params sizing parameters used on first call
+     * @return wrapper pool
+     */
+    private synchronized WrapperPool wrapperPool(final Params params) {
+        if (this.wrappers == null)
+        {
+            this.wrappers = new WrapperPool
+                ( (int) Math.max(0, params.getOrDefault("ms_wrapper_pool_size", 4))
+                , TimeUnit.SECONDS.toMillis(Math.max(0, params.getOrDefault("ms_wrapper_pool_idle", 300)))
+                );
+        }
+
+        return this.wrappers;
+    }
+
+    /**
+     * Takes the most recently pooled wrapper that validates for the request,
+     * or allocates a new one when none does. Wrappers idle too long or found
+     * invalid are closed along the way.
+     * 
+     * @param contain initialized container context
+     * @return wrapper of request resources
+     * @throws IOException raised on any error
+     */
+    private W borrowWrapper(final T contain) throws IOException {
+        final WrapperPool pool = this.wrappers != null ? this.wrappers : this.wrapperPool(contain.params);
+        final List<ResourceWrapping<?>> expired = new ArrayList<ResourceWrapping<?>>();
+
+        try
+        {
+            for (ResourceWrapping<?> idle; (idle = pool.poll(System.currentTimeMillis(), expired)) != null; )
+            {
+                @SuppressWarnings("unchecked")
+                final W wrapper = (W) idle;
+                boolean valid = false;
+
+                try
+                {
+                    valid = wrapper.validate(contain);
+                }
+                catch (Exception eX)
+                {
+                }
+
+                if (valid == true)
+                {
+                    counters.count("wrappers.reused");
+
+                    return wrapper;
+                }
+
+                counters.count("wrappers.invalid");
+
+                expired.add(wrapper);
+            }
+        }
+        finally
+        {
+            closeWrappers(expired);
+        }
+
+        return this.allocateWrapper(contain);
+    }
+
+    /**
+     * Shared facility. Finds the circuit breaker for a downstream resource,
+     * configured from the params given on first use.
+     * 
+     * @param key resource key, such as "wrapper:" or "client:" with a type
+     * @param params request params
+     * @return circuit breaker
+     */
+    static Breaker breaker(final String key, final Params params) {
+        final Breaker breaker = breakers.get(key);
+
+        return breaker != null ? breaker : breakers.computeIfAbsent(key, (created) -> new Breaker(created, params));
+    }
+
+    /**
+     * Allocates a new wrapper behind the circuit breaker for this service's
+     * wrappers when breakers are enabled, failing fast while it is open.
+     * 
+     * @param contain initialized container context
+     * @return allocated wrapper
+     * @throws IOException raised on any error or while open
+     */
+    private W allocateWrapper(final T contain) throws IOException {
+        if (contain.params.getOrDefault("ms_breaker_enabled", false) == false)
+        {
+            return this.allocateResourceWrapper(contain);
+        }
+
+        final Breaker breaker = breaker("wrapper:" + this.getClass().getName(), contain.params);
+        final long began = System.currentTimeMillis();
+        boolean failed = true;
+
+        if (breaker.acquire(began) == false)
+        {
+            throw breaker.refused();
+        }
+
+        try
+        {
+            final W wrapper = this.allocateResourceWrapper(contain);
+
+            failed = false;
+
+            return wrapper;
+        }
+        finally
+        {
+            final long now = System.currentTimeMillis();
+
+            breaker.record(now, now - began, failed);
+        }
+    }
+
+    /**
+     * Returns a pooled wrapper to the pool once reset, unless the request it
+     * served failed or the pool is full. Anything not pooled is closed.
+     * 
+     * @param wrapper wrapper of request resources
+     * @param failed true if the request failed
+     * @throws Exception raised on error closing the wrapper
+     */
+    private void releaseWrapper(final W wrapper, final boolean failed) throws Exception {
+        if (failed == false && wrapper.isPooled() == true && this.wrappers != null)
+        {
+            boolean reset = false;
+
+            try
+            {
+                wrapper.reset();
+
+                reset = true;
+            }
+            catch (Exception eX)
+            {
+                counters.count("wrappers.resetfailed");
+            }
+
+            if (reset == true)
+            {
+                final List<ResourceWrapping<?>> expired = new ArrayList<ResourceWrapping<?>>();
+                final boolean pooled = this.wrappers.offer(wrapper, System.currentTimeMillis(), expired);
+
+                closeWrappers(expired);
+
+                if (pooled == true)
+                {
+                    return;
+                }
+            }
+        }
+
+        wrapper.close();
+    }
+
+    private static void closeWrappers(final List<ResourceWrapping<?>> closing) {
+        for (final ResourceWrapping<?> wrapper : closing)
+        {
+            try
+            {
+                wrapper.close();
+            }
+            catch (Exception eX)
+            {
+            }
+
+            counters.count("wrappers.closed");
+        }
+    }
+
+    /**
+     * Simple container-wide counters of request handling activity reported
+     * through the metrics command.
+     */
+    public static class Counters {
+        private final ConcurrentMap<String, AtomicLong> map = new ConcurrentHashMap<String, AtomicLong>();
+
+        public long add(final String key, final long delta) {
+            AtomicLong counter = this.map.get(key);
+
+            if (counter == null)
+            {
+                final AtomicLong created = new AtomicLong();
+
+                if ((counter = this.map.putIfAbsent(key, created)) == null)
+                {
+                    counter = created;
+                }
+            }
+
+            return counter.addAndGet(delta);
+        }
+
+        public long count(final String key) {
+            return this.add(key, 1);
+        }
+
+        public Map<String, Long> snapshot() {
+            final Map<String, Long> values = new TreeMap<String, Long>();
+
+            for (final Map.Entry<String, AtomicLong> entry : this.map.entrySet())
+            {
+                values.put(entry.getKey(), entry.getValue().get());
+            }
+
+            return values;
+        }
+
+    }
+
+    /**
+     * Event for container to initialize context details using given environment
+     * parameters and facilities.
+     * 
+     * @param region location hint for services
+     * @param config execution configuration
+     * @return initialized container context instance
+     * @throws IOException raised on any error
+     */
+    protected abstract T allocateResourceContext(final String region, final String config) throws IOException;
+
+    /**
+     * Event for container to optionally allocate a resource wrapper of request
+     * handling.
+     * 
+     * @param context context for allocation
+     * @throws IOException raised on any error
+     * @return new wrapper for request cycle management
+     */
+    protected abstract W allocateResourceWrapper(final T context) throws IOException;
+
+    /**
+     * Event for container to optionally allocate a wrapped resource of request
+     * handling.
+     * 
+     * @param context context for allocation
+     * @param wrapper initializer/manager of wrapped resources
+     * @throws IOException raised on any error
+     * @return new wrapper for request cycle management
+     */
+    protected abstract R allocateWrappedResource(final T context, final W wrapper) throws IOException;
+    
+    /**
+     * Connects and initializes shared context parameters as part of specialized
+     * request processing at different layers. Implementers must call the super
+     * form before returning.
+     * 
+     * @param context container context being updated
+     * @param command request command to process
+     * @param trusted request security token
+     * @param region location hint for services
+     * @param config execution configuration
+     * @param logger logging facility
+     * @exception IOException initialization errors
+     */
+    protected void fixupRequestContainer(final T context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+        context.detail = String.format
+            ( "Processing '%s' with token '%s' in " + region + " as " + config
+            , command
+            , trusted
+            );
+
+        context.logger = logger;
+
+        for (final String key : System.getenv().keySet())
+        {
+            context.params.add
+                ( key
+                , System.getenv(key)
+                );
+        }
+
+        context.params.add
+            ( "msRegion"
+            , context.region = region
+            );
+        
+        context.params.add
+            ( "msConfig"
+            , context.config = config
+            );
+
+        context.tasks = new TaskScope
+            ( context.params
+            , (int) context.params.getOrDefault("ms_tasks_maxconcurrent", 16)
+            );
+
+        context.dispatcher = this.eventDispatcher
+            ( context
+            );
+    }
+
+    /**
+     * Dispatcher delivering events the request queued once it commits. Events
+     * are invoked as lambda functions for all but the test configuration, and
+     * services override this to stand in for AWS when testing locally.
+     * 
+     * @param context container context being fixed up
+     * @return dispatcher or null to drop queued events
+     */
+    protected Dispatcher eventDispatcher(final T context) {
+        if (context.config.equalsIgnoreCase("test") == true)
+        {
+            return null;
+        }
+
+        return invoker;
+    }
+
+    /**
+     * Shared facility. Sets up concurrency limits on first use, configured
+     * from the first request's params.
+     * 
+     * @param params request params
+     * @return concurrency limits
+     */
+    private synchronized Limits concurrencyLimits(final Params params) {
+        if (this.limits == null)
+        {
+            this.limits = new Limits(params);
+        }
+
+        return this.limits;
+    }
+
+    /**
+     * Admits request handling under the concurrency limits, measuring its
+     * latency once complete to adapt them, or answers at once with an
+     * overloaded result when over a limit.
+     * 
+     * @param command request command
+     * @param params request params
+     * @param dispatching starts request handling when admitted
+     * @return stage of request handling
+     */
+    private CompletableFuture<Returns> limitRequest(final String command, final Params params, final java.util.function.Supplier<CompletableFuture<Returns>> dispatching) {
+        final Limits limits = this.limits != null ? this.limits : this.concurrencyLimits(params);
+        final Limiter limiter = limits.admit(command);
+
+        if (limiter == null)
+        {
+            counters.count("limit.rejected");
+
+            return CompletableFuture.completedFuture(new Returns(Failure.overloaded()));
+        }
+
+        final long admitted = System.nanoTime();
+        final CompletableFuture<Returns> pending;
+
+        try
+        {
+            pending = dispatching.get();
+        }
+        catch (RuntimeException eX)
+        {
+            limits.cancel(limiter);
+
+            throw eX;
+        }
+
+        pending.whenComplete
+            ( (returns, failure) -> limits.release
+                ( limiter
+                , TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - admitted)
+                , failure instanceof CancellationException || (failure instanceof Failure && ((Failure) failure).fault == Fault.DEADLINE)
+                )
+            );
+
+        return pending;
+    }
+
+    /**
+     * Gathers operational details reported through the metrics command at the
+     * different layers. Implementers must call the super form before returning.
+     * 
+     * @param metrics named sections of the metrics response being updated
+     */
+    protected void collectMetrics(final Map<String, Object> metrics) {
+        metrics.put
+            ( "counters"
+            , counters.snapshot()
+            );
+
+        if (this.results != null)
+        {
+            metrics.put
+                ( "cache"
+                , this.results.snapshot()
+                );
+        }
+
+        if (this.wrappers != null)
+        {
+            metrics.put
+                ( "wrappers"
+                , this.wrappers.snapshot()
+                );
+        }
+
+        if (this.limits != null)
+        {
+            metrics.put
+                ( "limits"
+                , this.limits.snapshot()
+                );
+        }
+
+        if (this.completed != null)
+        {
+            metrics.put
+                ( "idempotency"
+                , this.completed.snapshot()
+                );
+        }
+
+        if (breakers.isEmpty() == false)
+        {
+            final Map<String, Object> breaking = new TreeMap<String, Object>();
+
+            for (final Map.Entry<String, Breaker> entry : breakers.entrySet())
+            {
+                breaking.put(entry.getKey(), entry.getValue().snapshot());
+            }
+
+            metrics.put
+                ( "breakers"
+                , breaking
+                );
+        }
+    }
+
+    /**
+     * Finds the hook handling the given command by scanning hooks in the order
+     * given on construction.
+     * 
+     * @param command request command to process
+     * @return matching hook or null if not supported
+     */
+    protected Handled<T, R> lookupHandled(final String command) {
+        for (final Handled<T, R> handled : this.hooks)
+        {
+            if (handled != null && handled.command.equalsIgnoreCase(command) == true)
+            {
+                return handled;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Keyring for verifying request security tokens of hooks declaring them
+     * required or optional. Implementers holding keys override this form.
+     * 
+     * @return keyring or null if none
+     */
+    protected JsonWebUserKeyring trustedKeyring() {
+        return null;
+    }
+
+    /**
+     * Verifies the request security token according to what the hook declares,
+     * rejecting required tokens that are missing and any token that is given
+     * but invalid.
+     * 
+     * @param handled hook matching the request command
+     * @param trusted request security token
+     * @return verified identity or null if none
+     * @throws IOException raised on rejection
+     */
+    private JsonWebUserToken authenticateRequest(final Handled<T, R> handled, final String trusted) throws IOException {
+        if (handled.authenticate == Authenticate.NONE)
+        {
+            return null;
+        }
+
+        if (trusted == null || trusted.equalsIgnoreCase("") == true)
+        {
+            if (handled.authenticate == Authenticate.REQUIRED)
+            {
+                counters.count("authenticate.missing");
+
+                throw Failure.tokenMissing();
+            }
+
+            return null;
+        }
+
+        final JsonWebUserKeyring keyring = this.trustedKeyring();
+
+        if (keyring == null)
+        {
+            throw new Failure
+                ( Fault.UNAUTHORIZED
+                , "Handler lacks keyring for trusted token"
+                );
+        }
+
+        final JsonWebUserToken identity = keyring.verify(trusted, System.currentTimeMillis() / 1000, mapper);
+
+        if (identity == null)
+        {
+            counters.count("authenticate.rejected");
+
+            throw Failure.tokenInvalid();
+        }
+
+        counters.count("authenticate.verified");
+
+        return identity;
+    }
+
+    /**
+     * Starts handling of the request by the given hook within newly allocated
+     * wrapper resources. The handler result is composed with the commit chain
+     * and closing of the wrapper without blocking on the handler, with the
+     * stage completing null if no wrapped resources were allocated.
+     * 
+     * @param handled hook matching the request command
+     * @param contain initialized container context
+     * @param posting request being processed
+     * @param started time request processing started
+     * @return stage completing with request result
+     */
+    private CompletableFuture<Returns> dispatchRequest(final Handled<T, R> handled, final T contain, final Posting posting, final Date started) {
+        final CompletableFuture<Returns> finished = new CompletableFuture<Returns>();
+        final W wrapper;
+
+        try
+        {
+            wrapper = this.borrowWrapper(contain);
+        }
+        catch (Exception eX)
+        {
+            finished.completeExceptionally(eX);
+
+            return finished;
+        }
+
+        CompletableFuture<Returns> pending;
+
+        try
+        {
+            final R wrapped = this.allocateWrappedResource(contain, wrapper);
+
+            if (wrapped != null)
+            {
+                // Synchronous hooks under a deadline run in place with a
+                // watchdog, unless "MS_DEADLINE_DETACH" moves them to the
+                // shared task executor for hooks that ignore interrupts.
+
+                final boolean watched = contain.deadline > 0 && (handled instanceof AsyncHandled) == false;
+                final CompletionStage<Object> handling = watched == false
+                    ? handled.doCommandAsync(contain, wrapped, posting.request.toString(), started)
+                    : contain.params.getOrDefault("ms_deadline_detach", false) == true
+                        ? this.detachRequest(handled, contain, wrapped, posting, started, finished)
+                        : this.watchRequest(handled, contain, wrapped, posting, started);
+
+                if (watched == false)
+                {
+                    finished.whenComplete
+                        ( (returns, failure) -> {
+                            if (finished.isCancelled() == true)
+                            {
+                                handling.toCompletableFuture().cancel(true);
+                            }
+                        }
+                        );
+                }
+
+                pending = handling.toCompletableFuture().thenApply
+                    ( (object) -> {
+                        try
+                        {
+                            // A detached hook returning after the request was
+                            // cut off has its work rolled back, not committed.
+
+                            if (finished.isCancelled() == true)
+                            {
+                                throw new CancellationException();
+                            }
+
+                            if (Streamed.isStreamed(object) == true)
+                            {
+                                return this.deferRequest(contain, wrapper, wrapped, object, started);
+                            }
+
+                            return this.commitRequest(contain, wrapper, wrapped, object, started);
+                        }
+                        catch (IOException eX)
+                        {
+                            throw new CompletionException(eX);
+                        }
+                    }
+                    );
+            }
+            else
+            {
+                pending = CompletableFuture.completedFuture(null);
+            }
+        }
+        catch (Exception eX)
+        {
+            pending = new CompletableFuture<Returns>();
+            pending.completeExceptionally(eX);
+        }
+
+        pending.whenComplete
+            ( (returns, failure) -> {
+                try
+                {
+                    if (wrapper != null && (returns == null || (returns.deferral == null && returns.committing == null)))
+                    {
+                        this.releaseWrapper(wrapper, failure != null);
+                    }
+                }
+                catch (Exception eX)
+                {
+                    if (failure == null)
+                    {
+                        finished.completeExceptionally(eX);
+                    }
+                }
+
+                if (failure != null)
+                {
+                    finished.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+                }
+                else
+                if (finished.complete(returns) == false && returns != null && returns.deferral != null)
+                {
+                    returns.deferral.release();
+                }
+            }
+            );
+
+        return finished;
+    }
+
+    /**
+     * Runs a synchronous hook in place on the request thread, with a watchdog
+     * interrupting the thread should the hook still be running at the request
+     * deadline. A hook cut off that way fails with a deadline fault whatever
+     * it went on to return, and the interrupt is cleared once it exits.
+     * 
+     * @param handled hook matching the request command
+     * @param contain initialized container context
+     * @param wrapped wrapped request resources
+     * @param posting decoded request
+     * @param started time request processing started
+     * @return stage completing with handler result
+     */
+    private CompletableFuture<Object> watchRequest(final Handled<T, R> handled, final T contain, final R wrapped, final Posting posting, final Date started) {
+        final Watchdog watchdog = new Watchdog();
+
+        watchdog.enter();
+
+        final ScheduledFuture<?> alarm = watchdogs().schedule(watchdog::expire, Math.max(0, contain.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        CompletableFuture<Object> handling;
+
+        try
+        {
+            handling = handled.doCommandAsync(contain, wrapped, posting.request.toString(), started).toCompletableFuture();
+        }
+        catch (Throwable eX)
+        {
+            handling = new CompletableFuture<Object>();
+            handling.completeExceptionally(eX);
+        }
+
+        alarm.cancel(false);
+
+        if (watchdog.exit() == true)
+        {
+            counters.count("deadline.timeout");
+
+            handling = new CompletableFuture<Object>();
+            handling.completeExceptionally(Failure.deadline());
+        }
+
+        return handling;
+    }
+
+    /**
+     * Runs a synchronous hook on the shared task executor rather than in place,
+     * so that a hook stuck past the request deadline can be cut off even when
+     * it ignores the interrupt. The hook runs away from the request thread and
+     * its thread locals, and shares the executor with sub-tasks and commits.
+     * The stage completes only once the hook has exited, so its wrapper is not
+     * released while the hook may still be using it.
+     * 
+     * @param handled hook matching the request command
+     * @param contain initialized container context
+     * @param wrapped wrapped request resources
+     * @param posting decoded request
+     * @param started time request processing started
+     * @param finished request result, cancelled when cut off
+     * @return stage completing with handler result
+     */
+    private CompletableFuture<Object> detachRequest(final Handled<T, R> handled, final T contain, final R wrapped, final Posting posting, final Date started, final CompletableFuture<Returns> finished) {
+        final CompletableFuture<Object> handling = new CompletableFuture<Object>();
+        final Watchdog watchdog = new Watchdog();
+
+        finished.whenComplete
+            ( (returns, failure) -> {
+                if (finished.isCancelled() == true)
+                {
+                    watchdog.expire();
+                }
+            }
+            );
+
+        taskWorkers(contain.params).execute
+            ( () -> {
+                if (watchdog.enter() == false)
+                {
+                    handling.completeExceptionally(Failure.deadline());
+
+                    return;
+                }
+
+                CompletionStage<Object> stage;
+
+                try
+                {
+                    stage = handled.doCommandAsync(contain, wrapped, posting.request.toString(), started);
+                }
+                catch (Throwable eX)
+                {
+                    final CompletableFuture<Object> failed = new CompletableFuture<Object>();
+
+                    failed.completeExceptionally(eX);
+
+                    stage = failed;
+                }
+
+                watchdog.exit();
+
+                stage.whenComplete
+                    ( (object, failure) -> {
+                        if (failure != null)
+                        {
+                            handling.completeExceptionally(failure);
+                        }
+                        else
+                        {
+                            handling.complete(object);
+                        }
+                    }
+                    );
+            }
+            );
+
+        return handling;
+    }
+
+    /**
+     * Interrupts the thread running a hook once expired, but only while the
+     * hook runs, so that the interrupt never reaches later work on the thread.
+     */
+    static final class Watchdog {
+        private Thread running = null;
+        private boolean expired = false;
+        private boolean exited = false;
+
+        /**
+         * Marks the current thread as running the hook.
+         * 
+         * @return false if already expired and the hook should not run
+         */
+        synchronized boolean enter() {
+            if (this.expired == true)
+            {
+                return false;
+            }
+
+            this.running = Thread.currentThread();
+
+            return true;
+        }
+
+        synchronized void expire() {
+            if (this.expired == false && this.exited == false)
+            {
+                this.expired = true;
+
+                if (this.running != null)
+                {
+                    this.running.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Marks the hook as exited, clearing any interrupt it was sent.
+         * 
+         * @return true if the hook was cut off
+         */
+        boolean exit() {
+            synchronized (this)
+            {
+                this.exited = true;
+                this.running = null;
+            }
+
+            if (this.expired == true)
+            {
+                Thread.interrupted();
+            }
+
+            return this.expired;
+        }
+
+    }
+
+    /**
+     * Runs request handling unless an identical request is already in flight,
+     * in which case that one's result is shared once it completes. Streamed
+     * results can only be written once, so requests waiting on one go on to
+     * run on their own.
+     * 
+     * @param requestKey key identifying the request
+     * @param dispatch starts request handling
+     * @return stage completing with request result
+     */
+    private CompletableFuture<Returns> coalesceRequest(final String requestKey, final java.util.function.Supplier<CompletableFuture<Returns>> dispatch) {
+        final CompletableFuture<Returns> shared = new CompletableFuture<Returns>();
+        final CompletableFuture<Returns> leading = this.inflight.putIfAbsent(requestKey, shared);
+
+        if (leading != null)
+        {
+            counters.count("coalesce.shared");
+
+            return leading.thenCompose
+                ( (returns) -> {
+                    if (returns != null)
+                    {
+                        return CompletableFuture.completedFuture(returns);
+                    }
+
+                    counters.count("coalesce.rerun");
+
+                    return dispatch.get();
+                }
+                );
+        }
+
+        counters.count("coalesce.leading");
+
+        final CompletableFuture<Returns> pending = dispatch.get();
+
+        pending.whenComplete
+            ( (returns, failure) -> {
+                this.inflight.remove(requestKey, shared);
+
+                if (failure != null)
+                {
+                    shared.completeExceptionally(failure);
+                }
+                else
+                {
+                    shared.complete(returns != null && returns.deferral == null ? returns : null);
+                }
+            }
+            );
+
+        return pending;
+    }
+
+    /**
+     * Packages handler result and runs the wrapped, wrapper and context commit
+     * events in that order.
+     * 
+     * @param contain initialized container context
+     * @param wrapper wrapper of request resources
+     * @param wrapped wrapped request resources
+     * @param object handler result
+     * @param started time request processing started
+     * @return request result
+     * @throws IOException raised on any error
+     */
+    private Returns commitRequest(final T contain, final W wrapper, final R wrapped, final Object object, final Date started) throws IOException {
+        final Returns returns;
+
+        if (object != null)
+        {
+            returns = new Returns
+                ( "success"
+                , object
+                );
+
+            contain.logger.log
+                ( "success"
+                );
+        }
+        else
+        {
+            throw Failure.responseNull();
+        }
+
+        if (contain.params.getOrDefault("ms_commit_overlap", false) == true)
+        {
+            returns.committing = this.overlapReturns
+                ( contain
+                , wrapper
+                , wrapped
+                , returns
+                , started
+                );
+
+            return returns;
+        }
+
+        this.commitReturns
+            ( contain
+            , wrapper
+            , wrapped
+            , returns
+            , started
+            );
+
+        return returns;
+    }
+
+    /**
+     * Packages a streamed handler result, leaving the wrapped, wrapper and
+     * context commit events along with closing the wrapper until the result
+     * has been written through.
+     * 
+     * @param contain initialized container context
+     * @param wrapper wrapper of request resources
+     * @param wrapped wrapped request resources
+     * @param object streamed handler result
+     * @param started time request processing started
+     * @return request result
+     */
+    private Returns deferRequest(final T contain, final W wrapper, final R wrapped, final Object object, final Date started) {
+        final Returns returns = new Returns
+            ( "success"
+            , object
+            );
+
+        returns.deferral = new Deferral() {
+
+            @Override
+            void commit() throws IOException {
+                MultiEndpointApi.this.commitReturns(contain, wrapper, wrapped, returns, started);
+            }
+
+            @Override
+            void release() {
+                try
+                {
+                    MultiEndpointApi.this.releaseWrapper(wrapper, this.failed);
+                }
+                catch (Exception eX)
+                {
+                }
+
+                if (contain.tasks != null)
+                {
+                    contain.tasks.close();
+                }
+            }
+
+        };
+
+        contain.logger.log
+            ( "streaming"
+            );
+
+        return returns;
+    }
+
+    /**
+     * Runs the wrapped commit event in place, since it is handed the result
+     * and may still change it, then starts the wrapper and context commit
+     * events on the shared task executor to run alongside each other and
+     * response serialization, unless the context declares it commits in order
+     * after the wrapper. The wrapper is closed once all have run, and the
+     * earliest phase to fail is the one reported.
+     * 
+     * @param contain initialized container context
+     * @param wrapper wrapper of request resources
+     * @param wrapped wrapped request resources
+     * @param returns request result
+     * @param started time request processing started
+     * @return stage completing once committed and closed
+     * @throws IOException raised on wrapped commit error
+     */
+    private CompletableFuture<Void> overlapReturns(final T contain, final W wrapper, final R wrapped, final Returns returns, final Date started) throws IOException {
+        final ExecutorService workers = taskWorkers(contain.params);
+        final CompletableFuture<Void> none = CompletableFuture.completedFuture(null);
+
+        try
+        {
+            wrapped.onCommit
+                ( contain
+                , returns
+                , started
+                );
+        }
+        catch (Exception eX)
+        {
+            throw new Failure
+                ( Fault.COMMIT
+                , "wrapped failed to commit"
+                , eX
+                );
+        }
+
+        final CompletableFuture<Void> first = overlapCommit
+            ( none
+            , workers
+            , () -> wrapper.onCommit(contain, started)
+            , "wrapper failed to commit"
+            );
+
+        final CompletableFuture<Void> second = overlapCommit
+            ( contain.commitsInOrder() == true ? first : none
+            , workers
+            , () -> contain.onCommit(started)
+            , "context failed to commit"
+            );
+
+        counters.count("commit.overlapped");
+
+        return CompletableFuture.allOf(first, second).handle
+            ( (value, failure) -> {
+                try
+                {
+                    this.releaseWrapper(wrapper, failure != null);
+                }
+                catch (Exception eX)
+                {
+                    if (failure == null)
+                    {
+                        throw new CompletionException(eX);
+                    }
+                }
+
+                for (final CompletableFuture<Void> phase : Arrays.asList(first, second))
+                {
+                    phase.join();
+                }
+
+                return null;
+            }
+            );
+    }
+
+    /**
+     * Interface for processing.
+     */
+    @FunctionalInterface
+    private static interface Commit {
+
+        void run() throws Exception;
+
+    }
+
+    private static CompletableFuture<Void> overlapCommit(final CompletableFuture<Void> prior, final ExecutorService workers, final Commit commit, final String message) {
+        return prior.thenRunAsync
+            ( () -> {
+                try
+                {
+                    commit.run();
+                }
+                catch (Exception eX)
+                {
+                    throw new CompletionException
+                        ( new Failure
+                            ( Fault.COMMIT
+                            , message
+                            , eX
+                            )
+                        );
+                }
+            }
+            , workers
+            );
+    }
+
+    /**
+     * Waits on commit events started alongside response serialization, up to
+     * the request deadline when there is one.
+     * 
+     * @param committing stage completing once committed and closed
+     * @param deadline request deadline or zero if none
+     * @throws IOException raised on any commit error or timeout
+     */
+    private static void awaitCommitted(final CompletableFuture<Void> committing, final long deadline) throws IOException {
+        try
+        {
+            if (deadline > 0)
+            {
+                committing.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                committing.get();
+            }
+        }
+        catch (TimeoutException eX)
+        {
+            counters.count("deadline.commit");
+
+            throw Failure.deadlineCommits();
+        }
+        catch (InterruptedException eX)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new IOException
+                ( "Interrupted waiting on request commits"
+                , eX
+                );
+        }
+        catch (ExecutionException eX)
+        {
+            if (eX.getCause() instanceof IOException)
+            {
+                throw (IOException) eX.getCause();
+            }
+
+            throw new Failure
+                ( Fault.HANDLER
+                , "Unable to wrap and execute request handling"
+                , eX.getCause()
+                );
+        }
+    }
+
+    /**
+     * Runs the wrapped, wrapper and context commit events in that order.
+     * 
+     * @param contain initialized container context
+     * @param wrapper wrapper of request resources
+     * @param wrapped wrapped request resources
+     * @param returns request result
+     * @param started time request processing started
+     * @throws IOException raised on any error
+     */
+    private void commitReturns(final T contain, final W wrapper, final R wrapped, final Returns returns, final Date started) throws IOException {
+        try
+        {
+            wrapped.onCommit
+                ( contain
+                , returns
+                , started
+                );
+        }
+        catch (Exception eX)
+        {
+            throw new Failure
+                ( Fault.COMMIT
+                , "wrapped failed to commit"
+                , eX
+                );
+        }
+
+        try
+        {
+            wrapper.onCommit
+                ( contain
+                , started
+                );
+        }
+        catch (Exception eX)
+        {
+            throw new Failure
+                ( Fault.COMMIT
+                , "wrapper failed to commit"
+                , eX
+                );
+        }
+
+        try
+        {
+            contain.onCommit
+                ( started
+                );
+        }
+        catch (Exception eX)
+        {
+            throw new Failure
+                ( Fault.COMMIT
+                , "context failed to commit"
+                , eX
+                );
+        }
+    }
+
+    /**
+     * Waits on request handling up to the request deadline when there is one,
+     * cutting handling off with a timeout result once it passes.
+     * 
+     * @param pending stage of request handling
+     * @param deadline request deadline or zero if none
+     * @return request result
+     * @throws IOException raised on any error
+     */
+    private Returns awaitRequest(final CompletableFuture<Returns> pending, final long deadline) throws IOException {
+        try
+        {
+            if (deadline > 0)
+            {
+                return pending.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+
+            return pending.get();
+        }
+        catch (TimeoutException eX)
+        {
+            counters.count("deadline.timeout");
+
+            pending.cancel(true);
+
+            return new Returns
+                ( Failure.deadline()
+                );
+        }
+        catch (InterruptedException eX)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new IOException
+                ( "Interrupted waiting on request handling"
+                , eX
+                );
+        }
+        catch (ExecutionException eX)
+        {
+            if (eX.getCause() instanceof IOException)
+            {
+                throw (IOException) eX.getCause();
+            }
+
+            throw new Failure
+                ( Fault.HANDLER
+                , "Unable to wrap and execute request handling"
+                , eX.getCause()
+                );
+        }
+    }
+
+    /**
+     * Serializes request result in the request wire format with operational
+     * parameters substituted for any placeholders the container cares to
+     * inject. Results are streamed to the target, and once past the threshold
+     * json is gzip compressed into an envelope when the request accepts it.
+     * 
+     * @param returns request result or null if none
+     * @param target response body output
+     * @param started time request processing started
+     * @param execute execution request identity
+     * @param format wire format the request arrived in
+     * @param encoding encoding the request accepts or empty if none
+     * @param threshold serialized size past which results are compressed
+     * @return true unless operational parameters were substituted
+     * @throws IOException raised on any error
+     */
+    protected static boolean writeReturns(final Returns returns, final OutputStream target, final Date started, final String execute, final Format format, final String encoding, final int threshold) throws IOException {
+        final Deferred deferred = format == Format.JSON && encoding != null && encoding.equalsIgnoreCase(Deferred.GZIP) == true ? new Deferred(target, threshold) : null;
+
+        final Substituting substituting;
+
+        try (final Substituting generator = new Substituting(format.mapper().getFactory().createGenerator(deferred != null ? deferred : target), started, execute))
+        {
+            generator.disable
+                ( JsonGenerator.Feature.AUTO_CLOSE_TARGET
+                );
+
+            substituting = generator;
+
+            if (returns != null && Streamed.isStreamed(returns.o) == true)
+            {
+                writeStreamed(returns, generator);
+            }
+            else
+            if (returns != null)
+            {
+                format.mapper().writeValue(generator, returns);
+            }
+            else
+            {
+                generator.writeStartObject();
+                generator.writeEndObject();
+            }
+        }
+
+        if (deferred != null)
+        {
+            deferred.finish();
+        }
+
+        return substituting.substituted == false;
     }
 
-    /**
-     * Base container implementation for holding onto wrapped resources alive
-     * during request processing and managed by the wrapper. 
-     */
-    public static abstract class WrappedResources<T extends MultiEndpointApi.ContainerContext> {
+    /**
+     * Writes a streamed result element by element into the result array ahead
+     * of the status, so that commits run once every element is written and a
+     * failure on the way still shows in the status and error code. Elements
+     * are buffered as tokens before being written, so one failing partway
+     * through its serialization leaves nothing behind in the response.
+     * 
+     * @param returns request result holding a streamed result
+     * @param generator response generator
+     * @throws IOException raised on any error writing
+     */
+    private static void writeStreamed(final Returns returns, final JsonGenerator generator) throws IOException {
+        Exception failure = null;
+
+        generator.writeStartObject();
+        generator.writeFieldName("o");
+        generator.writeStartArray();
+
+        try
+        {
+            Streamed.of(returns.o).stream
+                ( (element) -> {
+                    final com.fasterxml.jackson.databind.util.TokenBuffer buffered = new com.fasterxml.jackson.databind.util.TokenBuffer(generator.getCodec(), false);
+
+                    generator.getCodec().writeValue(buffered, element);
+
+                    buffered.serialize(generator);
+                }
+                );
+        }
+        catch (Exception eX)
+        {
+            failure = eX;
+        }
+
+        generator.writeEndArray();
+
+        if (failure == null && returns.deferral != null)
+        {
+            try
+            {
+                returns.deferral.commit();
+            }
+            catch (Exception eX)
+            {
+                failure = eX;
+            }
+        }
+
+        final Returns failed = failure != null ? new Returns(Failure.of(failure)) : null;
 
-        public abstract void onCommit(final T context, final Returns returns, final Date started) throws IOException;
+        if (failed != null)
+        {
+            counters.count("returns.streamfailed");
+            counters.count(failed.fault.counted);
+
+            if (returns.deferral != null)
+            {
+                returns.deferral.failed = true;
+            }
+        }
+
+        if (returns.trusted != null)
+        {
+            generator.writeFieldName("trusted");
+            generator.writeString(returns.trusted);
+        }
+
+        generator.writeFieldName("results");
+        generator.writeString(failed == null ? returns.results : failed.results);
+
+        if (failed != null)
+        {
+            generator.writeFieldName("code");
+            generator.writeString(failed.code);
+        }
 
+        generator.writeEndObject();
     }
 
     /**
-     * Base container implementation for holding onto request-specific values
-     * and facilities as part of normal request handling. Container should
-     * define a default constructor. 
+     * Opens a response body written by the handler for reading as plain json,
+     * decompressing it as it is read when the handler sent it in an envelope.
+     * 
+     * @param source response body input
+     * @return json response body input
+     * @throws IOException raised on any error
      */
-    public static class ContainerContext {
-        private List<Entry> events = new ArrayList<Entry>();
-        
-        public Params params = new Params();
-        public Tracer logger = new Tracer();
-        public String region = "";
-        public String config = "";
-        public String detail = "";
-
-        private static class Entry {
-            
-            final String service;
-            final String qualify;
-            final String payload;
-            
-            Entry(final String service, final String qualify, final String payload) {
-                this.service = service;
-                this.qualify = qualify;
-                this.payload = payload;
-            }
+    public static InputStream readReturns(final InputStream source) throws IOException {
+        final PushbackInputStream pushback = new PushbackInputStream(source, Deferred.prefix.length);
+        final byte [] leading = new byte[Deferred.prefix.length];
+        int n = 0;
 
+        for (int r; n < leading.length && (r = pushback.read(leading, n, leading.length - n)) > 0; )
+        {
+            n += r;
         }
-        
-        public void queueRequest(final String serviceName, final String qualifier, final String payload) {
-            this.events.add(new Entry(serviceName, qualifier, payload));
+
+        if (n == leading.length && Arrays.equals(leading, Deferred.prefix) == true)
+        {
+            return new java.util.zip.GZIPInputStream
+                ( Base64.getDecoder().wrap
+                    ( new Enveloped(new BufferedInputStream(pushback, 8 * 1024))
+                    )
+                , 8 * 1024
+                );
         }
 
-        void onCommit(final Date started) throws IOException {
-        	if (this.config.equalsIgnoreCase("test") == true)
-        	{
-        		return;
-        	}
+        pushback.unread(leading, 0, n);
 
-            if (this.events.isEmpty() == true)
+        return pushback;
+    }
+
+    /**
+     * Container for processing. Generates json with placeholders in strings and
+     * names replaced by operational parameters, and doubled single quotes by
+     * double quotes.
+     */
+    private static class Substituting extends com.fasterxml.jackson.core.util.JsonGeneratorDelegate {
+        private final Date started;
+        private final String execute;
+        private Date wrapped = null;
+        private boolean substituted = false;
+
+        private String substitute(final String value) {
+            if (value == null || (value.indexOf("((") < 0 && value.indexOf("''") < 0))
             {
-                return;
+                return value;
             }
-            
-            try
-            {
-                AWSLambda lam = AWSLambdaClientBuilder.standard().withRegion(this.region).build();
 
-                for (final Entry entry : this.events)
-                {
-                    lam.invoke
-                        ( new InvokeRequest()
-                            .withFunctionName(entry.service)
-                            .withQualifier(entry.qualify)
-                            .withInvocationType(InvocationType.Event)
-                            .withPayload
-                                ( entry.payload
-                                )
-                        );                    
-                }
+            if (this.wrapped == null)
+            {
+                this.wrapped = new Date();
             }
-            finally
+
+            String replaced = value;
+
+            replaced = replaced.replace("((running))", "" + (this.wrapped.getTime() - this.started.getTime()));
+            replaced = replaced.replace("((execute))", "" + (this.execute));
+            replaced = replaced.replace("((started))", "" + (this.started.getTime()));
+            replaced = replaced.replace("((wrapped))", "" + (this.wrapped.getTime()));
+
+            if (replaced.equals(value) == false)
             {
-                this.events.clear();
+                this.substituted = true;
             }
+
+            return replaced.replace("''", "\"");
+        }
+
+        @Override
+        public void writeString(final String text) throws IOException {
+            this.delegate.writeString(this.substitute(text));
+        }
+
+        @Override
+        public void writeString(final char [] text, final int offset, final int len) throws IOException {
+            this.delegate.writeString(this.substitute(new String(text, offset, len)));
+        }
+
+        @Override
+        public void writeFieldName(final String name) throws IOException {
+            this.delegate.writeFieldName(this.substitute(name));
+        }
+
+        Substituting(final JsonGenerator generator, final Date started, final String execute) {
+            super(generator, false);
+            this.started = started;
+            this.execute = execute;
         }
 
     }
 
     /**
-     * Simple logger wrapper for tracing activity during request processing.
+     * Container for processing. Holds output back until it passes a threshold,
+     * then switches to gzip compressing it as base64 within an envelope.
      */
-    public static class Tracer {
-        private final LambdaLogger delegate;
+    private static class Deferred extends OutputStream {
+        static final String GZIP = "gzip";
+        static final byte [] prefix = "{\"encoded\":\"gzip+base64\",\"z\":\"".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        static final byte [] suffix = "\"}".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+        private final OutputStream target;
+        private final int threshold;
+        private byte [] buffer = new byte[8 * 1024];
+        private int count = 0;
+        private OutputStream encoded = null;
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.write(new byte [] { (byte) b }, 0, 1);
+        }
 
-        public Tracer log(final String message) {
-            if (this.delegate != null)
+        @Override
+        public void write(final byte [] b, final int offset, final int len) throws IOException {
+            if (this.encoded == null)
             {
-                this.delegate.log("(" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + ") " + (message != null ? message : "null"));
+                if (this.count + len <= this.threshold)
+                {
+                    if (this.count + len > this.buffer.length)
+                    {
+                        this.buffer = Arrays.copyOf(this.buffer, Math.min(this.threshold, Math.max(this.buffer.length * 2, this.count + len)));
+                    }
+
+                    System.arraycopy(b, offset, this.buffer, this.count, len);
+                    this.count += len;
+
+                    return;
+                }
+
+                counters.count("returns.gzip");
+
+                this.target.write(prefix);
+                this.encoded = new java.util.zip.GZIPOutputStream
+                    ( Base64.getEncoder().wrap
+                        ( new Unclosed(this.target)
+                        )
+                    , 8 * 1024
+                    );
+
+                this.encoded.write(this.buffer, 0, this.count);
+                this.buffer = null;
             }
 
-            return this;
+            this.encoded.write(b, offset, len);
         }
-    
-        private Tracer(final LambdaLogger delegate) {
-            this.delegate = delegate;
+
+        void finish() throws IOException {
+            if (this.encoded == null)
+            {
+                this.target.write(this.buffer, 0, this.count);
+            }
+            else
+            {
+                this.encoded.close();
+                this.target.write(suffix);
+            }
         }
 
-        private Tracer() {
-            this.delegate = null;
+        Deferred(final OutputStream target, final int threshold) {
+            this.target = target;
+            this.threshold = Math.max(0, threshold);
         }
-        
+
     }
 
     /**
-     * Simple environment caching of passed or specified process parameters.
+     * Container for processing. Keeps the response target open when encoding
+     * streams layered over it are closed.
      */
-    public static class Params {
-        private final Map<String, String> map = new HashMap<String, String>();
+    private static class Unclosed extends FilterOutputStream {
 
-        public String getOrDefault(final String key, final String defaultValue) {
-            return this.map.getOrDefault(key.toLowerCase(), defaultValue);
+        @Override
+        public void write(final byte [] b, final int offset, final int len) throws IOException {
+            this.out.write(b, offset, len);
         }
-        
-        public void add(final String key, final String value) {
-            if (key != null && value != null)
-            {
-                this.map.put(key.toLowerCase(), value);
-            }
+
+        @Override
+        public void close() throws IOException {
+            this.out.flush();
+        }
+
+        Unclosed(final OutputStream target) {
+            super(target);
         }
 
     }
 
     /**
-     * Event for container to initialize context details using given environment
-     * parameters and facilities.
-     * 
-     * @param region location hint for services
-     * @param config execution configuration
-     * @return initialized container context instance
-     * @throws IOException raised on any error
+     * Container for processing. Reads enveloped base64 up to its closing quote.
      */
-    protected abstract T allocateResourceContext(final String region, final String config) throws IOException;
+    private static class Enveloped extends FilterInputStream {
+        private boolean ended = false;
 
-    /**
-     * Event for container to optionally allocate a resource wrapper of request
-     * handling.
-     * 
-     * @param context context for allocation
-     * @throws IOException raised on any error
-     * @return new wrapper for request cycle management
-     */
-    protected abstract W allocateResourceWrapper(final T context) throws IOException;
+        @Override
+        public int read() throws IOException {
+            if (this.ended == true)
+            {
+                return -1;
+            }
 
-    /**
-     * Event for container to optionally allocate a wrapped resource of request
-     * handling.
-     * 
-     * @param context context for allocation
-     * @param wrapper initializer/manager of wrapped resources
-     * @throws IOException raised on any error
-     * @return new wrapper for request cycle management
-     */
-    protected abstract R allocateWrappedResource(final T context, final W wrapper) throws IOException;
-    
-    /**
-     * Connects and initializes shared context parameters as part of specialized
-     * request processing at different layers. Implementers must call the super
-     * form before returning.
-     * 
-     * @param context container context being updated
-     * @param command request command to process
-     * @param trusted request security token
-     * @param region location hint for services
-     * @param config execution configuration
-     * @param logger logging facility
-     * @exception IOException initialization errors
-     */
-    protected void fixupRequestContainer(final T context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
-        context.detail = String.format
-            ( "Processing '%s' with token '%s' in " + region + " as " + config
-            , command
-            , trusted
-            );
+            final int b = this.in.read();
 
-        context.logger = logger;
+            if (b == '"')
+            {
+                this.ended = true;
 
-        for (final String key : System.getenv().keySet())
-        {
-            context.params.add
-                ( key
-                , System.getenv(key)
-                );
+                return -1;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(final byte [] b, final int offset, final int len) throws IOException {
+            if (this.ended == true)
+            {
+                return -1;
+            }
+
+            final int n = this.in.read(b, offset, len);
+
+            for (int i = 0; i < n; i++)
+            {
+                if (b[offset + i] == '"')
+                {
+                    this.ended = true;
+
+                    return i > 0 ? i : -1;
+                }
+            }
+
+            return n;
+        }
+
+        Enveloped(final InputStream source) {
+            super(source);
         }
 
-        context.params.add
-            ( "msRegion"
-            , context.region = region
-            );
-        
-        context.params.add
-            ( "msConfig"
-            , context.config = config
-            );
     }
 
     /**
@@ -236,6 +2436,8 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
     @Override
     public final void handleRequest(final InputStream source, final OutputStream target, final Context context) {
         final Date started = new Date();
+        final long remaining = context != null ? context.getRemainingTimeInMillis() : 0;
+        Format format = Format.JSON;
 
         try
         {
@@ -287,8 +2489,11 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
             // given on construction. This can be optimized, but we don't
             // really expect a large set.
 
-            String requesting = "";
-            String responseOf = "";
+            byte [] requesting = new byte[16 * 1024];
+            int length = 0;
+            IdempotencyStore claimer = null;
+            String claimedKey = null;
+            CompletableFuture<Void> claimed = null;
 
             if (source == null)
             {
@@ -297,17 +2502,20 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
                     );
             }
             
-            try (final InputStreamReader reader = new InputStreamReader(source, "utf-8"))
+            try (final InputStream reader = source)
             {
-                final char buffer[] = new char[16 * 1024];
-
                 while (true)
                 {
-                    int n = reader.read(buffer);
+                    if (length == requesting.length)
+                    {
+                        requesting = Arrays.copyOf(requesting, requesting.length * 2);
+                    }
+
+                    int n = reader.read(requesting, length, requesting.length - length);
                     
                     if (n > 0)
                     {
-                        requesting += new String(buffer, 0, n);
+                        length += n;
                     }
                     else
                     if (n < 0)
@@ -319,20 +2527,83 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
             
             try
             {
-                Posting posting = mapper.readValue(requesting, Posting.class);
+                format = Format.sniff(requesting, length);
+
+                Posting posting = format.mapper().readValue(requesting, 0, length, Posting.class);
                 Returns returns;
+                int threshold = 256 * 1024;
+                String cacheKey = null;
+                String idempotencyKey = null;
+                long cacheExpires = 0;
+                long deadline = 0;
 
                 returns = new Returns
-                    ( String.format
-                        ( "command request '%s' not supported"
-                        , posting.command
-                        )
+                    ( Fault.UNSUPPORTED
+                    , "command request '" + posting.command + "' not supported"
                     );
                 
+                if (posting.command.equalsIgnoreCase("getappmetrics") == true)
+                {
+                    final Map<String, Object> metrics = new TreeMap<String, Object>();
+
+                    this.collectMetrics
+                        ( metrics
+                        );
+
+                    returns = new Returns
+                        ( "success"
+                        , metrics
+                        );
+                }
+                else
                 if (posting.command.equalsIgnoreCase("getappdetail") == false)
                 {
                     Tracer logger = new Tracer(context != null ? context.getLogger() : null);
 
+                    // Trusted tokens are verified once up front, so that invalid
+                    // ones are turned away before any container allocation.
+
+                    final Handled<T, R> handled = this.lookupHandled(posting.command);
+                    final JsonWebUserToken identity = handled != null ? this.authenticateRequest(handled, posting.trusted) : null;
+
+                    // Cacheable hooks answer repeated requests with serialized
+                    // results held by the warm container, again ahead of any
+                    // container allocation.
+
+                    final String requestKey = handled != null && (handled.cacheable > 0 || handled.coalesced == true) ? requestKeyOf(handled, identity, posting) : null;
+
+                    if (handled != null && posting.idempotency.equalsIgnoreCase("") == false)
+                    {
+                        idempotencyKey = handled.command.toLowerCase()
+                            + "\n" + (identity != null ? identity.getIssuing() + "\n" + identity.getUniqued() : "\n")
+                            + "\n" + posting.idempotency
+                            + "\n" + format
+                            + "\n" + posting.encoding.toLowerCase();
+                    }
+
+                    if (handled != null && handled.cacheable > 0)
+                    {
+                        cacheKey = requestKey + "\n" + format + "\n" + posting.encoding.toLowerCase();
+                        cacheExpires = started.getTime() + TimeUnit.SECONDS.toMillis(handled.cacheable);
+
+                        final byte [] cached = this.results != null ? this.results.lookup(cacheKey, started.getTime()) : null;
+
+                        if (cached != null)
+                        {
+                            counters.count("cache.hit");
+
+                            logger.log
+                                ( "cached '" + posting.command + "'"
+                                );
+
+                            target.write(cached);
+
+                            return;
+                        }
+
+                        counters.count("cache.miss");
+                    }
+
                     try
                     {
                         final T contain = this.allocateResourceContext(region, config);
@@ -346,99 +2617,98 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
                             , logger
                             );
 
-                        contain.logger.log
-                            ( "running '" + posting.command + "' with request = " + posting.request
+                        contain.identity = identity;
+
+                        // Handling is cut off at a deadline short of the time
+                        // left for the invocation, keeping a margin to write
+                        // the response.
+
+                        if (remaining > 0)
+                        {
+                            contain.deadline = started.getTime() + remaining - contain.params.getOrDefault("ms_deadline_margin", 250);
+                            contain.tasks.deadline = contain.deadline;
+                            deadline = contain.deadline;
+                        }
+
+                        threshold = (int) contain.params.getOrDefault
+                            ( "ms_response_gzip_threshold"
+                            , threshold
                             );
-                        
-                        for (final Handled<T, R> handled : this.hooks)
+
+                        if (cacheKey != null && this.results == null)
+                        {
+                            this.resultCache(contain.params);
+                        }
+
+                        try
                         {
-                            if (handled != null && handled.command.equalsIgnoreCase(posting.command) == true)
+                            // Requests carrying an idempotency key that already
+                            // completed, as with retried event deliveries, are
+                            // answered with the recorded result. The key is
+                            // claimed first, so a duplicate of a request still
+                            // running waits and then finds its result.
+
+                            if (idempotencyKey != null)
                             {
-                                try (final W wrapper = this.allocateResourceWrapper(contain))
+                                final IdempotencyStore store = this.completed != null ? this.completed : this.idempotencyStore(contain.params, contain.logger);
+
+                                if (store != null)
                                 {
-                                    final R wrapped = this.allocateWrappedResource(contain, wrapper);
-
-                                    if (wrapped != null)
-                                    {
-                                        Object object = handled.doCommand(contain, wrapped, posting.request.toString(), started);
-                                        
-                                        if (object != null)
-                                        {
-                                            returns = new Returns
-                                                ( "success"
-                                                , object
-                                                );
-
-                                            contain.logger.log
-                                                ( "success"
-                                                );
-                                        }
-                                        else
-                                        {
-                                            throw new IOException
-                                                ( "Handler logic response came back null"
-                                                );
-                                        }
-
-                                        try
-                                        {
-	                                        wrapped.onCommit
-	                                            ( contain
-	                                            , returns
-	                                            , started
-	                                            );
-                                        }
-                                        catch (Exception eX)
-                                        {
-                                        	throw new IOException
-                                        		( "wrapped failed to commit"
-                                        		, eX
-                                        		);
-                                        }
-
-                                        try
-                                        {
-	                                        wrapper.onCommit
-	                                            ( contain
-	                                            , started
-	                                            );
-                                        }
-                                        catch (Exception eX)
-                                        {
-                                        	throw new IOException
-                                        		( "wrapper failed to commit"
-                                        		, eX
-                                        		);
-                                        }
-
-                                        try
-                                        {
-	                                        contain.onCommit
-	                                        	( started
-	                                        	);
-                                        }
-                                        catch (Exception eX)
-                                        {
-                                        	throw new IOException
-                                        		( "context failed to commit"
-                                        		, eX
-                                        		);
-                                        }
-                                    }
+                                    claimed = store.claim(idempotencyKey, contain.deadline);
+                                    claimedKey = idempotencyKey;
+                                    claimer = store;
                                 }
-                                catch (IOException eX)
+
+                                final byte [] replayed = store != null ? store.lookup(idempotencyKey, started.getTime()) : null;
+
+                                if (replayed != null)
                                 {
-                                	throw eX;
+                                    counters.count("idempotency.hit");
+
+                                    contain.logger.log
+                                        ( "replayed '" + posting.command + "' for idempotency key " + posting.idempotency
+                                        );
+
+                                    target.write(replayed);
+
+                                    return;
                                 }
-                                catch (Exception eX)
+
+                                counters.count("idempotency.miss");
+                            }
+
+                            contain.logger.log
+                                ( "running '" + posting.command + "' with request = " + posting.request
+                                );
+                        
+                            if (handled != null)
+                            {
+                                // Under adaptive concurrency limits, requests
+                                // past a limit are answered as overloaded at
+                                // once rather than queued.
+
+                                final java.util.function.Supplier<CompletableFuture<Returns>> dispatching = handled.coalesced == true
+                                    ? () -> this.coalesceRequest(requestKey, () -> this.dispatchRequest(handled, contain, posting, started))
+                                    : () -> this.dispatchRequest(handled, contain, posting, started);
+
+                                final Returns finished = this.awaitRequest
+                                    ( contain.params.getOrDefault("ms_limit_enabled", false) == true
+                                        ? this.limitRequest(handled.command, contain.params, dispatching)
+                                        : dispatching.get()
+                                    , contain.deadline
+                                    );
+
+                                if (finished != null)
                                 {
-                                	throw new IOException
-                                		( "Unable to wrap and execute request handling"
-                                		, eX
-                                		);
+                                    returns = finished;
                                 }
-                                
-                                break;
+                            }
+                        }
+                        finally
+                        {
+                            if (contain.tasks != null && returns.deferral == null)
+                            {
+                                contain.tasks.close();
                             }
                         }
                     }
@@ -496,53 +2766,121 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
                     }
                 }
                 
-                responseOf = returns != null ? mapper.writeValueAsString(returns) : "{ }";
-            }
-            catch (Exception eX)
-            {
-                throw eX;
-            }
+                // Now writing whatever result was obtained as a serialized blob
+                // with replacements for operational parameters if the container
+                // cares to inject them.
+                //
+                // Note that a failure to write could throw out and subsequently
+                // append the exception details.
+
+                // Where commits overlap serialization, the response is held
+                // back until they succeed, so that a failed commit is still
+                // answered as a failure. Only successful results are cached,
+                // so a deadline or overload is never replayed to later calls.
+
+                if (returns.fault != null)
+                {
+                    counters.count(returns.fault.counted);
 
-            // Now writing whatever result was obtained as a serialized blob
-            // with replacements for operational parameters if the container
-            // cares to inject them.
-            //
-            // Note that a failure to write could throw out and subsequently
-            // append the exception details.
-            
-            try
-            {
-                final Date wrapped = new Date();
+                    returns.startedAt = started.getTime();
+                    returns.executeId = context != null ? context.getAwsRequestId() : "";
+                }
 
-                responseOf = responseOf.replace("((running))", "" + (wrapped.getTime() - started.getTime()));
-                responseOf = responseOf.replace("((execute))", "" + (context.getAwsRequestId()));
-                responseOf = responseOf.replace("((started))", "" + (started.getTime()));
-                responseOf = responseOf.replace("((wrapped))", "" + (wrapped.getTime()));
-                
-                target.write
-                    ( responseOf.replace("''",  "\"").getBytes("utf8")
-                    );
+                try
+                {
+                    final ByteArrayOutputStream overlapped = returns.committing != null ? new ByteArrayOutputStream(16 * 1024) : null;
+                    final ResultCache cache = cacheKey != null && returns.deferral == null && returns.fault == null && "success".equals(returns.results) == true ? this.results : null;
+                    final IdempotencyStore completed = idempotencyKey != null && returns.deferral == null && returns.fault == null ? this.completed : null;
+                    final Captured captured = cache != null || completed != null ? new Captured(overlapped != null ? overlapped : target, Math.max(cache != null ? cache.bytesLimit : 0, completed != null ? completed.recordLimit : 0)) : null;
+
+                    final boolean repeatable = writeReturns
+                        ( returns
+                        , captured != null ? captured : overlapped != null ? overlapped : target
+                        , started
+                        , context != null ? context.getAwsRequestId() : ""
+                        , format
+                        , posting.encoding
+                        , threshold
+                        );
+
+                    if (overlapped != null)
+                    {
+                        awaitCommitted(returns.committing, deadline);
+
+                        overlapped.writeTo(target);
+                    }
+
+                    if (completed != null && captured.buffer != null && completed.store(idempotencyKey, Arrays.copyOf(captured.buffer, captured.count), started.getTime()) == true)
+                    {
+                        counters.count("idempotency.stored");
+                    }
+
+                    if (cache != null && repeatable == true && captured.buffer != null && captured.count <= cache.bytesLimit)
+                    {
+                        cache.store
+                            ( cacheKey
+                            , Arrays.copyOf(captured.buffer, captured.count)
+                            , cacheExpires
+                            );
+                    }
+                }
+                catch (Exception eX)
+                {
+                    if (returns.deferral != null)
+                    {
+                        returns.deferral.failed = true;
+                    }
+
+                    throw eX;
+                }
+                finally
+                {
+                    if (returns.deferral != null)
+                    {
+                        returns.deferral.release();
+                    }
+                }
             }
             catch (Exception eX)
             {
                 throw eX;
             }
+            finally
+            {
+                if (claimed != null)
+                {
+                    claimer.release(claimedKey, claimed);
+                }
+            }
 
             return;
         }
         catch (Exception eX)
         {
-            // Oops. Handle error and let's figure this out.
-    
+            // Oops. Handle error and let's figure this out. Failures are
+            // answered with their error code through the same writer as
+            // results, and logged as one line.
+
+            final Failure failure = Failure.of(eX);
+
+            counters.count(failure.fault.counted);
+
             try
             {
-                target.write
-                    ( String.format
-                        ( "{ ''results'': ''Failed%s'', ''started'': %d, ''execute'': ''%s'' }"
-                        , eX.getMessage() != null ? " because " + eX.getMessage().toLowerCase().replace('\'', '`') : ""
-                        , started.getTime()
-                        , context.getAwsRequestId()
-                        ).replace("''",  "\"").getBytes("utf8")
+                final Returns returns = new Returns(failure);
+
+                returns.trusted = null;
+                returns.startedAt = started.getTime();
+                returns.executeId = context != null ? context.getAwsRequestId() : "";
+
+                writeReturns
+                    ( returns
+                    , target
+                    , started
+                    , returns.executeId
+                    , format
+                    , ""
+                    , 0
                     );
             }
             catch (Exception nX)
@@ -551,29 +2889,287 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
 
             if (context != null)
             {
+                final StringBuilder logged = new StringBuilder("failed (").append(failure.fault.code).append(")");
+
             	for (Throwable tX = eX; tX != null; tX = tX.getCause())
             	{
-	                context.getLogger().log
-	                    ( String.format
-	                        ( "failed%s"
-	                        , tX.getMessage() != null ? " because " + tX.getMessage().toLowerCase() : ""
-	                        )
-	                    );
+                    if (tX.getMessage() != null)
+                    {
+                        logged.append(" because ").append(tX.getMessage().toLowerCase());
+                    }
             	}
+
+                context.getLogger().log
+                    ( logged.toString()
+                    );
             }
         }
     }
     
+    /**
+     * Wire formats postings and returns travel in, with responses written in
+     * the format the request arrived in. Binary formats are told apart from
+     * json by their leading bytes.
+     */
+    public static enum Format {
+        JSON,
+        SMILE,
+        CBOR;
+
+        public ObjectMapper mapper() {
+            switch (this)
+            {
+                case SMILE:
+                    return Derived.current().smile;
+                case CBOR:
+                    return Derived.current().cbor;
+                default:
+                    return mapper;
+            }
+        }
+
+        public static Format sniff(final byte [] leading, final int length) {
+            if (length >= 3 && leading[0] == ':' && leading[1] == ')' && leading[2] == '\n')
+            {
+                return SMILE;
+            }
+
+            if (length >= 1 && (leading[0] & 0xe0) == 0xa0)
+            {
+                return CBOR;
+            }
+
+            if (length >= 3 && (leading[0] & 0xff) == 0xd9 && (leading[1] & 0xff) == 0xd9 && (leading[2] & 0xff) == 0xf7)
+            {
+                return CBOR;
+            }
+
+            return JSON;
+        }
+
+    }
+
+    /**
+     * Handling of request security tokens declared by handler hooks, verified
+     * by the framework before dispatch with the identity placed on the context.
+     */
+    public static enum Authenticate {
+        NONE,
+        OPTIONAL,
+        REQUIRED
+    }
+
+    /**
+     * Stable error codes answered with failed results and counted per code,
+     * letting callers branch on the kind of failure without parsing messages.
+     */
+    public static enum Fault {
+        MALFORMED,
+        UNSUPPORTED,
+        UNAUTHORIZED,
+        DEADLINE,
+        HANDLER,
+        COMMIT,
+        OVERLOADED,
+        UNAVAILABLE,
+        INTERNAL;
+
+        public final String code = this.name().toLowerCase();
+        final String counted = "errors." + this.code;
+
+    }
+
+    /**
+     * Failure carrying a stable error code. Failures are stackless, since the
+     * code and message identify them and any cause keeps its own trace, so
+     * expected failures are cheap to raise even when every request fails.
+     * Those with fixed messages still get a new instance per throw, since a
+     * shared one would gather suppressed exceptions across requests.
+     */
+    public static class Failure extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final Fault fault;
+
+        static Failure deadline() {
+            return new Failure(Fault.DEADLINE, "Handler did not complete before request deadline");
+        }
+
+        static Failure deadlineTasks() {
+            return new Failure(Fault.DEADLINE, "Sub-tasks did not complete before request deadline");
+        }
+
+        static Failure deadlineEvents() {
+            return new Failure(Fault.DEADLINE, "Context events not dispatched before request deadline");
+        }
+
+        static Failure deadlineCommits() {
+            return new Failure(Fault.DEADLINE, "Commits did not complete before request deadline");
+        }
+
+        static Failure tokenMissing() {
+            return new Failure(Fault.UNAUTHORIZED, "Request lacks required trusted token");
+        }
+
+        static Failure tokenInvalid() {
+            return new Failure(Fault.UNAUTHORIZED, "Request trusted token is not valid");
+        }
+
+        static Failure responseNull() {
+            return new Failure(Fault.HANDLER, "Handler logic response came back null");
+        }
+
+        static Failure overloaded() {
+            return new Failure(Fault.OVERLOADED, "Command is over its concurrency limit");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+        /**
+         * Classifies any error raised while handling a request, keeping the
+         * code of failures and wrapping others without another layer.
+         *
+         * @param failure error raised
+         * @return failure with error code
+         */
+        static Failure of(final Throwable failure) {
+            if (failure instanceof Failure)
+            {
+                return (Failure) failure;
+            }
+
+            return new Failure
+                ( failure instanceof JsonProcessingException ? Fault.MALFORMED : Fault.INTERNAL
+                , failure.getMessage()
+                , failure
+                );
+        }
+
+        public Failure(final Fault fault, final String message, final Throwable cause) {
+            super(message, cause);
+            this.fault = fault;
+        }
+
+        public Failure(final Fault fault, final String message) {
+            super(message);
+            this.fault = fault;
+        }
+
+    }
+
     /**
      * Base interface for all handler hooks to process requests. 
      */
     public static abstract class Handled<T extends ContainerContext, R extends WrappedResources<T>> {
+        final Authenticate authenticate;
         final String command;
+        final long cacheable;
+        final boolean coalesced;
         
         public abstract Object doCommand(final T context, final R wrapped, final String posting, final Date started) throws IOException;
 
-        public Handled(final String commandLabel) {
+        /**
+         * Starts processing of the request, completing with the handler result.
+         * Synchronous handlers are adapted by running doCommand in place.
+         * 
+         * @param context initialized container context
+         * @param wrapped wrapped request resources
+         * @param posting request body
+         * @param started time request processing started
+         * @return stage completing with handler result
+         * @throws IOException raised on any error
+         */
+        public CompletionStage<Object> doCommandAsync(final T context, final R wrapped, final String posting, final Date started) throws IOException {
+            return CompletableFuture.completedFuture(this.doCommand(context, wrapped, posting, started));
+        }
+
+        /**
+         * Construct cacheable. Results for the same request are served from the
+         * warm container for the given number of seconds, keyed separately for
+         * each verified identity. When coalesced, identical requests arriving
+         * while one is running wait on it and share its result.
+         * 
+         * @param commandLabel request command handled
+         * @param authenticate handling of request security tokens
+         * @param cacheSeconds seconds results stay cached or zero for none
+         * @param coalesce true to share results of identical concurrent requests
+         */
+        public Handled(final String commandLabel, final Authenticate authenticate, final long cacheSeconds, final boolean coalesce) {
+            this.authenticate = authenticate != null ? authenticate : Authenticate.NONE;
             this.command = commandLabel;
+            this.cacheable = Math.max(0, cacheSeconds);
+            this.coalesced = coalesce;
+        }
+
+        public Handled(final String commandLabel, final Authenticate authenticate, final long cacheSeconds) {
+            this(commandLabel, authenticate, cacheSeconds, false);
+        }
+
+        public Handled(final String commandLabel, final Authenticate authenticate) {
+            this(commandLabel, authenticate, 0);
+        }
+
+        public Handled(final String commandLabel) {
+            this(commandLabel, Authenticate.NONE);
+        }
+
+    }
+
+    /**
+     * Base interface for handler hooks that process requests asynchronously,
+     * letting independent work overlap until the result is needed.
+     */
+    public static abstract class AsyncHandled<T extends ContainerContext, R extends WrappedResources<T>> extends Handled<T, R> {
+
+        @Override
+        public abstract CompletionStage<Object> doCommandAsync(final T context, final R wrapped, final String posting, final Date started) throws IOException;
+
+        @Override
+        public final Object doCommand(final T context, final R wrapped, final String posting, final Date started) throws IOException {
+            try
+            {
+                return this.doCommandAsync(context, wrapped, posting, started).toCompletableFuture().get();
+            }
+            catch (InterruptedException eX)
+            {
+                Thread.currentThread().interrupt();
+
+                throw new IOException
+                    ( "Interrupted waiting on handler logic"
+                    , eX
+                    );
+            }
+            catch (ExecutionException eX)
+            {
+                if (eX.getCause() instanceof IOException)
+                {
+                    throw (IOException) eX.getCause();
+                }
+
+                throw new IOException
+                    ( "Handler logic failed"
+                    , eX.getCause()
+                    );
+            }
+        }
+
+        public AsyncHandled(final String commandLabel, final Authenticate authenticate, final long cacheSeconds, final boolean coalesce) {
+            super(commandLabel, authenticate, cacheSeconds, coalesce);
+        }
+
+        public AsyncHandled(final String commandLabel, final Authenticate authenticate, final long cacheSeconds) {
+            super(commandLabel, authenticate, cacheSeconds);
+        }
+
+        public AsyncHandled(final String commandLabel, final Authenticate authenticate) {
+            super(commandLabel, authenticate);
+        }
+
+        public AsyncHandled(final String commandLabel) {
+            super(commandLabel);
         }
 
     }
@@ -587,6 +3183,8 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
         public String command = "";
         public String trusted = "";
         public String request = "";
+        public String encoding = "";
+        public String idempotency = "";
 
         public static class Deserializer extends JsonDeserializer<Posting> {
 
@@ -612,6 +3210,16 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
                     {
                         that.request = node.get("request").toString().trim();
                     }
+
+                    if (node.get("encoding") != null)
+                    {
+                        that.encoding = node.get("encoding").asText("").trim();
+                    }
+
+                    if (node.get("idempotency") != null)
+                    {
+                        that.idempotency = node.get("idempotency").asText("").trim();
+                    }
                 }
                 catch (JsonProcessingException eX)
                 {
@@ -648,11 +3256,108 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
             this.results = results != null ? results.replace('"', '\'') : "";
         }
 
+        /**
+         * Construct failed. Answers with the error code of the failure along
+         * with when and where the request ran.
+         *
+         * @param failure failure raised handling the request
+         */
+        public Returns(final Failure failure) {
+            this.results = failure.getMessage() != null ? "Failed because " + failure.getMessage().toLowerCase().replace('\'', '`') : "Failed";
+            this.code = failure.fault.code;
+            this.fault = failure.fault;
+        }
+
+        Returns(final Fault fault, final String results) {
+            this(results);
+            this.code = fault.code;
+            this.fault = fault;
+        }
+
+        public String code = null;
+
+        @JsonProperty("started")
+        Long startedAt = null;
+
+        @JsonProperty("execute")
+        String executeId = null;
+
+        Fault fault = null;
+
         final String running = "((running))";
         final String execute = "((execute))";
+
+        Deferral deferral = null;
+        CompletableFuture<Void> committing = null;
         
     }
 
+    /**
+     * Container for processing. Holds request resources open while a streamed
+     * result is written, committing once it has been written through.
+     */
+    static abstract class Deferral {
+
+        boolean failed = false;
+
+        abstract void commit() throws IOException;
+
+        abstract void release();
+
+    }
+
+    /**
+     * Result a handler produces element by element into a sink, written as the
+     * result array while it is produced rather than held in memory. Handlers
+     * may also return an Iterator or a Stream to the same effect.
+     */
+    @FunctionalInterface
+    public static interface Streamed {
+
+        /**
+         * Receives streamed result elements in order.
+         */
+        @FunctionalInterface
+        public static interface Sink {
+
+            void write(final Object element) throws IOException;
+
+        }
+
+        void stream(final Sink sink) throws Exception;
+
+        static boolean isStreamed(final Object result) {
+            return result instanceof Streamed || result instanceof Iterator || result instanceof java.util.stream.BaseStream;
+        }
+
+        static Streamed of(final Object result) {
+            if (result instanceof Streamed)
+            {
+                return (Streamed) result;
+            }
+
+            return (sink) -> {
+                try
+                {
+                    final Iterator<?> iterator = result instanceof Iterator ? (Iterator<?>) result : ((java.util.stream.BaseStream<?, ?>) result).iterator();
+
+                    while (iterator.hasNext() == true)
+                    {
+                        sink.write(iterator.next());
+                    }
+                }
+                finally
+                {
+                    if (result instanceof AutoCloseable)
+                    {
+                        ((AutoCloseable) result).close();
+                    }
+                }
+            };
+        }
+
+    }
+
     /**
      * Container for processing. 
      */
@@ -685,6 +3390,26 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
         this.hooks = hooks;
     }
 
+    /**
+     * Shared facility.
+     */
+    public static final Counters counters = new Counters();
+
+    /**
+     * Shared facility.
+     */
+    private static final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+    /**
+     * Shared facility.
+     */
+    private static final ConcurrentMap<String, IdempotencyStore> idempotencyStores = new ConcurrentHashMap<String, IdempotencyStore>();
+
+    /**
+     * Shared facility.
+     */
+    private static final Dispatcher invoker = new Invoker();
+
     /**
      * Shared facility.
      */
@@ -705,4 +3430,73 @@ public abstract class MultiEndpointApi<T extends MultiEndpointApi.ContainerConte
             );
     };
 
+    /**
+     * Container for processing. Binary mappers derived from the json mapper,
+     * sharing its configuration, its serializer and deserializer factories
+     * where registered modules keep custom handling, and its subtypes. They
+     * are derived again whenever the json mapper is replaced, reconfigured
+     * or given modules, each of which swaps one of those for a new instance.
+     */
+    private static final class Derived {
+        private static volatile Derived current = null;
+
+        final ObjectMapper source;
+        final SerializationConfig serialization;
+        final DeserializationConfig deserialization;
+        final com.fasterxml.jackson.databind.ser.SerializerFactory serializers;
+        final DeserializationContext deserializers;
+        final ObjectMapper smile;
+        final ObjectMapper cbor;
+
+        static Derived current() {
+            final ObjectMapper source = mapper;
+            Derived derived = current;
+
+            if (derived == null || derived.matches(source) == false)
+            {
+                current = derived = new Derived(source);
+            }
+
+            return derived;
+        }
+
+        private boolean matches(final ObjectMapper source) {
+            return this.source == source
+                && this.serialization == source.getSerializationConfig()
+                && this.deserialization == source.getDeserializationConfig()
+                && this.serializers == source.getSerializerFactory()
+                && this.deserializers == source.getDeserializationContext();
+        }
+
+        private ObjectMapper derive(final JsonFactory factory) {
+            return new ObjectMapper
+                ( factory
+                , ((com.fasterxml.jackson.databind.ser.DefaultSerializerProvider) this.source.getSerializerProvider()).copy()
+                , ((com.fasterxml.jackson.databind.deser.DefaultDeserializationContext) this.deserializers).copy()
+                )
+                .setSerializerFactory(this.serializers)
+                .setSubtypeResolver(this.source.getSubtypeResolver())
+                .setInjectableValues(this.source.getInjectableValues())
+                .setConfig(this.serialization)
+                .setConfig(this.deserialization);
+        }
+
+        private Derived(final ObjectMapper source) {
+            this.source = source;
+            this.serialization = source.getSerializationConfig();
+            this.deserialization = source.getDeserializationConfig();
+            this.serializers = source.getSerializerFactory();
+            this.deserializers = source.getDeserializationContext();
+            this.smile = this.derive(new SmileFactory());
+            this.cbor = this.derive(new CBORFactory());
+        }
+
+    }
+
+    /**
+     * Shared facility. Writes maps in key order for hashing cached requests.
+     */
+    private static final ObjectWriter canonical = mapper.writer()
+        .with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+
+/**
+ * Holds serialized results of cacheable hooks until they expire, evicting
+ * the least recently used past either bound.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+class ResultCache {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final int entriesLimit;
+    final long bytesLimit;
+    private long bytes = 0;
+
+    private static class Entry {
+
+        final byte [] body;
+        final long expires;
+
+        Entry(final byte [] body, final long expires) {
+            this.body = body;
+            this.expires = expires;
+        }
+
+    }
+
+    synchronized byte [] lookup(final String key, final long now) {
+        final Entry entry = this.entries.get(key);
+
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (entry.expires <= now)
+        {
+            this.entries.remove(key);
+            this.bytes -= entry.body.length;
+
+            return null;
+        }
+
+        return entry.body;
+    }
+
+    synchronized void store(final String key, final byte [] body, final long expires) {
+        final Entry replaced = this.entries.put(key, new Entry(body, expires));
+
+        this.bytes += body.length - (replaced != null ? replaced.body.length : 0);
+
+        for (final Iterator<Entry> eldest = this.entries.values().iterator(); eldest.hasNext() == true && (this.entries.size() > this.entriesLimit || this.bytes > this.bytesLimit); )
+        {
+            this.bytes -= eldest.next().body.length;
+            eldest.remove();
+
+            MultiEndpointApi.counters.count("cache.evicted");
+        }
+    }
+
+    synchronized Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new TreeMap<String, Object>();
+
+        snapshot.put("entries", this.entries.size());
+        snapshot.put("bytes", this.bytes);
+        snapshot.put("entriesLimit", this.entriesLimit);
+        snapshot.put("bytesLimit", this.bytesLimit);
+
+        return snapshot;
+    }
+
+    ResultCache(final int entriesLimit, final long bytesLimit) {
+        this.entriesLimit = entriesLimit;
+        this.bytesLimit = bytesLimit;
+    }
+
+}
@@ -3,6 +3,8 @@ package com.unowmo.microwrap;
 import java.io.*;
 import java.util.*;
 import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
@@ -13,7 +15,120 @@ import javax.crypto.spec.*;
  *
  */
 public class StringHashSigner implements AutoCloseable {
+	private final static ConcurrentMap<String, Factory> factories = new ConcurrentHashMap<String, Factory>();
 	private final Mac mac;
+	private Factory factory;
+	private boolean closed = false;
+
+	/**
+	 * Hands out signers backed by a pool of macs already initialized with one
+	 * secret key, so that repeated signing skips the provider lookup, key
+	 * decoding and mac initialization. Closing a signer resets its mac and
+	 * returns it to the pool.
+	 */
+	public static final class Factory {
+		private final ConcurrentLinkedQueue<Mac> idle = new ConcurrentLinkedQueue<Mac>();
+		private final AtomicInteger pooled = new AtomicInteger();
+		private final SecretKeySpec key;
+
+		/**
+		 * Takes an initialized mac from the pool, or creates one if none idle.
+		 * 
+		 * @exception IOException unable to initialize mac
+		 * @return signer to be closed after use
+		 */
+		public StringHashSigner acquire() throws IOException {
+			Mac mac = this.idle.poll();
+
+			if (mac != null)
+			{
+				this.pooled.decrementAndGet();
+			}
+			else
+			{
+				try
+				{
+					mac = Mac.getInstance(StringHashSigner.algorithm);
+
+					mac.init
+						( this.key
+						);
+				}
+				catch (NoSuchAlgorithmException | InvalidKeyException eX)
+				{
+					throw new IOException
+						( "Unable to initialize mac"
+						, eX
+						);
+				}
+			}
+
+			return new StringHashSigner(mac, this);
+		}
+
+		/**
+		 * Counts macs sitting idle in the pool.
+		 * 
+		 * @return number of pooled macs
+		 */
+		public int idle() {
+			return this.pooled.get();
+		}
+
+		void release(final Mac mac) {
+			if (this.pooled.incrementAndGet() <= StringHashSigner.poolLimit)
+			{
+				this.idle.offer(mac);
+			}
+			else
+			{
+				this.pooled.decrementAndGet();
+			}
+		}
+
+		Factory(final String secretKey) throws IOException {
+			try
+			{
+				this.key = new SecretKeySpec(Base64.getDecoder().decode(secretKey), StringHashSigner.algorithm);
+			}
+			catch (IllegalArgumentException eX)
+			{
+				throw new IOException
+					( "Unable to decode secret key"
+					, eX
+					);
+			}
+		}
+
+	}
+
+	/**
+	 * Looks up the shared factory of pooled signers for the given secret key.
+	 * 
+     * @param secretKey base64 string of secret key for hashing
+     * @exception IOException unable to decode secret key
+	 * @return factory of signers using secret key
+	 */
+	public static Factory factory(final String secretKey) throws IOException {
+		Factory factory = factories.get(secretKey);
+
+		if (factory == null)
+		{
+			if (factories.size() >= StringHashSigner.keysLimit)
+			{
+				factories.clear();
+			}
+
+			final Factory created = new Factory(secretKey);
+
+			if ((factory = factories.putIfAbsent(secretKey, created)) == null)
+			{
+				factory = created;
+			}
+		}
+
+		return factory;
+	}
 	
 	/**
 	 * Initializes mac with secret key for hashing content for transmission.
@@ -28,6 +143,11 @@ public class StringHashSigner implements AutoCloseable {
 	        this.mac.init
 	        	( new SecretKeySpec(Base64.getDecoder().decode(secretKey), StringHashSigner.algorithm)
 	        	);
+
+			// A pooled mac holding some other key is no longer fit to go back
+			// to its pool.
+
+			this.factory = null;
 			
 			return this;
 		}
@@ -62,11 +182,46 @@ public class StringHashSigner implements AutoCloseable {
 	}
 
 	/**
-	 * Cleans up allocated resources.
+	 * Hashes a range of content bytes according to initialized mac, leaving the
+	 * mac ready for reuse.
+	 * 
+	 * @param content bytes holding payload to hash
+	 * @param offset start of payload
+	 * @param length count of payload bytes
+	 * @exception IOException failure to hash content
+	 * @return raw hash
+	 */
+	public byte [] digest(final byte [] content, final int offset, final int length) throws IOException {
+		try
+		{
+			this.mac.update(content, offset, length);
+
+			return this.mac.doFinal();
+		}
+		catch (IllegalStateException eX)
+		{
+			throw new IOException
+				( "Failed to sign content"
+				, eX
+				);
+		}
+	}
+
+	/**
+	 * Cleans up allocated resources, returning pooled macs to their factory.
 	 */
 	@Override
 	public void close() {
-		this.mac.reset();
+		if (this.closed == false)
+		{
+			this.closed = true;
+			this.mac.reset();
+
+			if (this.factory != null)
+			{
+				this.factory.release(this.mac);
+			}
+		}
 	}
 	
 	/**
@@ -76,6 +231,8 @@ public class StringHashSigner implements AutoCloseable {
      * @exception IOException unable to initialize mac
 	 */
 	public StringHashSigner(final String secretKey) throws IOException {
+		this.factory = null;
+
 		try
 		{
 	        this.mac = Mac.getInstance(StringHashSigner.algorithm);
@@ -99,6 +256,8 @@ public class StringHashSigner implements AutoCloseable {
      * @exception IOException unable to initialize mac
 	 */
 	public StringHashSigner() throws IOException {
+		this.factory = null;
+
 		try
 		{
 	        this.mac = Mac.getInstance(StringHashSigner.algorithm);
@@ -112,6 +271,19 @@ public class StringHashSigner implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * Construct pooled.
+	 * 
+	 * @param mac initialized mac
+	 * @param factory pool to return mac on close
+	 */
+	private StringHashSigner(final Mac mac, final Factory factory) {
+		this.factory = factory;
+		this.mac = mac;
+	}
+
 	private static String algorithm = "HMACSHA256";
+	private static int poolLimit = 64;
+	private static int keysLimit = 256;
 
 }
@@ -0,0 +1,72 @@
+package com.unowmo.microwrap;
+
+import java.util.*;
+
+/**
+ * Keeps idle wrappers most recent first, evicting from the far end those
+ * idle longer than allowed.
+ * 
+ * @author Kirk Bulis
+ *
+ */
+class WrapperPool {
+    private final Deque<Idle> idle = new ArrayDeque<Idle>();
+    private final int limit;
+    private final long idleMillis;
+
+    private static class Idle {
+
+        final MultiEndpointApi.ResourceWrapping<?> wrapper;
+        final long since;
+
+        Idle(final MultiEndpointApi.ResourceWrapping<?> wrapper, final long since) {
+            this.wrapper = wrapper;
+            this.since = since;
+        }
+
+    }
+
+    synchronized MultiEndpointApi.ResourceWrapping<?> poll(final long now, final List<MultiEndpointApi.ResourceWrapping<?>> expired) {
+        this.evict(now, expired);
+
+        final Idle taken = this.idle.pollFirst();
+
+        return taken != null ? taken.wrapper : null;
+    }
+
+    synchronized boolean offer(final MultiEndpointApi.ResourceWrapping<?> wrapper, final long now, final List<MultiEndpointApi.ResourceWrapping<?>> expired) {
+        this.evict(now, expired);
+
+        if (this.idle.size() >= this.limit)
+        {
+            return false;
+        }
+
+        this.idle.addFirst(new Idle(wrapper, now));
+
+        return true;
+    }
+
+    private void evict(final long now, final List<MultiEndpointApi.ResourceWrapping<?>> expired) {
+        while (this.idle.isEmpty() == false && now - this.idle.peekLast().since > this.idleMillis)
+        {
+            expired.add(this.idle.pollLast().wrapper);
+        }
+    }
+
+    synchronized Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new TreeMap<String, Object>();
+
+        snapshot.put("idle", this.idle.size());
+        snapshot.put("limit", this.limit);
+        snapshot.put("idleMillis", this.idleMillis);
+
+        return snapshot;
+    }
+
+    WrapperPool(final int limit, final long idleMillis) {
+        this.limit = limit;
+        this.idleMillis = idleMillis;
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.unowmo.microwrap.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import com.amazonaws.*;
+import com.amazonaws.regions.*;
+import com.amazonaws.services.lambda.*;
+import com.unowmo.microwrap.*;
+
+/**
+ * Measures cached client access, both when the region keeper already holds
+ * the client and when the first access in a region must build it. Misses are
+ * timed as single shots over distinct regions since every built client stays
+ * cached for the life of the process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachedServiceApiBenchmark {
+    private final BenchApiService service = new BenchApiService();
+    private final Iterator<Regions> regions = Arrays.asList(Regions.values()).iterator();
+    private BenchApiService.BenchContext cached = null;
+
+    /**
+     * Exposes container fixup so keepers can be obtained outside of a request.
+     */
+    static class BenchApiService extends CachedServiceApi<BenchApiService.BenchContext, BenchApiService.BenchWrapper, BenchApiService.BenchWrapped> {
+
+        static class BenchContext extends CachedServiceApi.ContainerContext {
+
+            AmazonWebServiceClient access() {
+                return this.cacher.access(AWSLambdaClientBuilder.class);
+            }
+
+        }
+
+        static class BenchWrapped extends MultiEndpointApi.WrappedResources<BenchContext> {
+
+            @Override
+            public void onCommit(final BenchContext context, final Returns returns, final Date started) {
+            }
+
+        }
+
+        static class BenchWrapper extends MultiEndpointApi.ResourceWrapping<BenchContext> {
+
+            @Override
+            public void onCommit(final BenchContext context, final Date started) {
+            }
+
+            @Override
+            public void close() {
+            }
+
+        }
+
+        @Override
+        protected BenchContext allocateResourceContext(final String region, final String config) {
+            return new BenchContext();
+        }
+
+        @Override
+        protected BenchWrapper allocateResourceWrapper(final BenchContext context) {
+            return new BenchWrapper();
+        }
+
+        @Override
+        protected BenchWrapped allocateWrappedResource(final BenchContext context, final BenchWrapper wrapper) {
+            return new BenchWrapped();
+        }
+
+        BenchContext fixup(final String region) throws IOException {
+            final BenchContext context = new BenchContext();
+
+            this.fixupRequestContainer(context, "bench", "", region, "test", context.logger);
+
+            return context;
+        }
+
+        @SuppressWarnings("unchecked")
+        BenchApiService() {
+            super(new Handled [0]);
+        }
+
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        this.cached = this.service.fixup("us-west-2");
+        this.cached.access();
+    }
+
+    @Benchmark
+    public AmazonWebServiceClient accessHit() {
+        return this.cached.access();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 12)
+    public AmazonWebServiceClient accessMiss() throws IOException {
+        final Regions region = this.regions.hasNext() == true ? this.regions.next() : Regions.DEFAULT_REGION;
+
+        return this.service.fixup(region.getName()).access();
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.unowmo.microwrap.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import com.fasterxml.jackson.databind.*;
+import com.unowmo.microwrap.*;
+
+/**
+ * Compares parsing, verifying and minting web tokens against the former
+ * approach of splitting, formatting and replacing strings, binding beans and
+ * comparing re-encoded signatures.
+ * 
+ * Verification rotates through twice as many distinct tokens as the verified
+ * token cache holds, so every call takes the full parse and hash path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonWebUserTokenBenchmark {
+    private final String secretKey = Base64.getEncoder().encodeToString("benchmarking secret key".getBytes());
+    private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final long nowInSecs = 1500000100L;
+    private String [] tokens;
+    private int next = 0;
+
+    static class Headers {
+        public String typ = "";
+        public String alg = "";
+
+    }
+
+    static class Payload {
+        public String uid = "";
+        public String iss = "";
+        public int iat = 0;
+        public int exp = 0;
+
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        this.tokens = new String[8192];
+
+        for (int i = 0; i < this.tokens.length; ++i)
+        {
+            this.tokens[i] = new JsonWebUserToken("bench", "user" + i + "@example.com", this.secretKey, 1500000000L, 3600L).getTokened();
+        }
+    }
+
+    private String token() {
+        final String token = this.tokens[this.next];
+
+        this.next = (this.next + 1) % this.tokens.length;
+
+        return token;
+    }
+
+    @Benchmark
+    public boolean verify() throws IOException {
+        return new JsonWebUserToken(this.token(), this.mapper).testIsValid(this.secretKey, this.nowInSecs, this.mapper);
+    }
+
+    @Benchmark
+    public JsonWebUserToken parse() throws IOException {
+        return new JsonWebUserToken(this.tokens[0], this.mapper);
+    }
+
+    @Benchmark
+    public boolean verifyCached() {
+        return JsonWebUserToken.verify(this.tokens[0], this.secretKey, this.nowInSecs, this.mapper) != null;
+    }
+
+    @Benchmark
+    public boolean verifyLegacy() throws IOException {
+        final String [] parts = this.token().split("\\.");
+        final Base64.Decoder decoder = Base64.getDecoder();
+
+        final Headers h = this.mapper.readValue(decoder.decode(parts[0].replace('-', '+').replace('_', '/').getBytes("utf8")), Headers.class);
+        final Payload p = this.mapper.readValue(decoder.decode(parts[1].replace('-', '+').replace('_', '/').getBytes("utf8")), Payload.class);
+
+        if (h.typ.equalsIgnoreCase("jwt") == true && p.uid.equalsIgnoreCase("") == false)
+        {
+            try (final StringHashSigner signer = new StringHashSigner(this.secretKey))
+            {
+                if (signer.sign(parts[0] + "." + parts[1]).replace('+', '-').replace('/', '_').equalsIgnoreCase(parts[2]) == true)
+                {
+                    final Payload q = this.mapper.readValue(decoder.decode(parts[1].replace('-', '+').replace('_', '/').getBytes("utf8")), Payload.class);
+
+                    return q.iat <= this.nowInSecs && this.nowInSecs <= q.exp;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Benchmark
+    public String mint() throws IOException {
+        return new JsonWebUserToken("bench", "user@example.com", this.secretKey, this.nowInSecs, 3600L).getTokened();
+    }
+
+    @Benchmark
+    public String mintLegacy() throws IOException {
+        final Base64.Encoder encoder = Base64.getEncoder();
+
+        final String headers = encoder.encodeToString
+            ( "{ ''typ'': ''JWT'', ''alg'': ''HS256'' }".replace("''", "\"").getBytes("utf8")
+            ).replace('+', '-').replace('/', '_');
+
+        final String payload = encoder.encodeToString
+            ( String.format
+                ( "{ ''uid'': ''%s'', ''iss'': ''%s'', ''iat'': %d, ''exp'': %d }"
+                , "user@example.com"
+                , "bench"
+                , this.nowInSecs
+                , this.nowInSecs + 3600L
+                ).replace("''", "\"").getBytes("utf8")
+            ).replace('+', '-').replace('/', '_');
+
+        try (final StringHashSigner signer = new StringHashSigner(this.secretKey))
+        {
+            return headers + "." + payload + "." + signer.sign(headers + "." + payload).replace('+', '-').replace('/', '_');
+        }
+    }
+
+}
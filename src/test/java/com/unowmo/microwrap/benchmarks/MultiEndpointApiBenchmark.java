@@ -0,0 +1,209 @@
+package com.unowmo.microwrap.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import com.amazonaws.services.lambda.runtime.*;
+import com.unowmo.microwrap.*;
+
+/**
+ * Measures the request pipeline end to end through handleRequest for small,
+ * medium and multi-megabyte postings, along with posting deserialization and
+ * returns serialization with placeholder substitution on their own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiEndpointApiBenchmark {
+    private final BenchApiService service = new BenchApiService();
+    private final BenchApiContext context = new BenchApiContext();
+    private byte [] posting = null;
+    private MultiEndpointApi.Returns returns = null;
+
+    @Param({ "small", "medium", "large" })
+    public String size = "small";
+
+    /**
+     * Echoes whatever request object was posted back as the result.
+     */
+    static class BenchApiService extends MultiEndpointApi<BenchApiService.BenchContext, BenchApiService.BenchWrapper, BenchApiService.BenchWrapped> {
+
+        static class BenchContext extends MultiEndpointApi.ContainerContext {
+
+        }
+
+        static class BenchWrapped extends MultiEndpointApi.WrappedResources<BenchContext> {
+
+            @Override
+            public void onCommit(final BenchContext context, final Returns returns, final Date started) {
+            }
+
+        }
+
+        static class BenchWrapper extends MultiEndpointApi.ResourceWrapping<BenchContext> {
+
+            @Override
+            public void onCommit(final BenchContext context, final Date started) {
+            }
+
+            @Override
+            public void close() {
+            }
+
+        }
+
+        @Override
+        protected BenchContext allocateResourceContext(final String region, final String config) {
+            return new BenchContext();
+        }
+
+        @Override
+        protected BenchWrapper allocateResourceWrapper(final BenchContext context) {
+            return new BenchWrapper();
+        }
+
+        @Override
+        protected BenchWrapped allocateWrappedResource(final BenchContext context, final BenchWrapper wrapper) {
+            return new BenchWrapped();
+        }
+
+        void write(final Returns returns, final OutputStream target, final Date started, final Format format) throws IOException {
+            writeReturns(returns, target, started, "bench", format, "", 0);
+        }
+
+        @SuppressWarnings("unchecked")
+        BenchApiService() {
+            super(new Handled []
+                { new Handled<BenchContext, BenchWrapped>("echo") {
+                    @Override
+                    public Object doCommand(final BenchContext context, final BenchWrapped wrapped, final String posting, final Date started) throws IOException {
+                        return mapper.readTree(posting).get("o");
+                    }
+                  }
+                });
+        }
+
+    }
+
+    /**
+     * Quiet invocation context for a test configuration.
+     */
+    static class BenchApiContext implements Context {
+        private final LambdaLogger logger = new LambdaLogger() {
+            @Override
+            public void log(final String message) {
+            }
+        };
+
+        @Override
+        public String getAwsRequestId() {
+            return "bench";
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "";
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return "";
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return "";
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return this.logger;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 0;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return 0;
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return "arn:aws:lambda:us-west-2:0:function:microservice-wrap:test";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return null;
+        }
+
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final int rows = this.size.equals("large") == true ? 40000 : this.size.equals("medium") == true ? 160 : 1;
+        final StringBuilder o = new StringBuilder();
+
+        for (int i = 0; i < rows; i++)
+        {
+            o.append(i > 0 ? ", " : "").append(String.format
+                ( "{ ''id'': %d, ''name'': ''row %d'', ''note'': ''started ((started)) running ((running))'', ''score'': %d.5 }"
+                , i
+                , i
+                , i * 7
+                ));
+        }
+
+        final String request = String.format
+            ( "{ ''command'': ''echo''"
+            + ", ''trusted'': ''''"
+            + ", ''request'': { ''o'': [ %s ] }"
+            + " }"
+            , o
+            ).replace("''", "\"");
+
+        this.posting = request.getBytes("utf8");
+        this.returns = new MultiEndpointApi.Returns("success", MultiEndpointApi.mapper.readTree(request).get("request").get("o"));
+    }
+
+    @Benchmark
+    public int handleRequest() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        this.service.handleRequest(new ByteArrayInputStream(this.posting), target, this.context);
+
+        return target.size();
+    }
+
+    @Benchmark
+    public MultiEndpointApi.Posting readPosting() throws IOException {
+        return MultiEndpointApi.mapper.readValue(this.posting, MultiEndpointApi.Posting.class);
+    }
+
+    @Benchmark
+    public int writeReturns() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        this.service.write(this.returns, target, new Date(), MultiEndpointApi.Format.JSON);
+
+        return target.size();
+    }
+
+}
@@ -0,0 +1,386 @@
+package com.unowmo.microwrap.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import com.fasterxml.jackson.core.*;
+import com.unowmo.microwrap.*;
+
+/**
+ * Replays recorded postings, one json object per line, against a service at a
+ * given concurrency and optional rate, then reports throughput, latency
+ * percentiles and error rates overall and by command. Queued events go to a
+ * local dispatcher that only counts them, so nothing reaches AWS, provided the
+ * service returns {@link #dispatcher} from its event dispatcher hook as the
+ * default echo service does.
+ * 
+ * Options are given as "name=value" arguments:
+ * 
+ *   file           postings to replay (default replay.jsonl on the classpath)
+ *   service        service class with a no-argument constructor (default echo)
+ *   concurrency    worker threads issuing requests (default 8)
+ *   rate           requests per second or 0 for as fast as possible (default 0)
+ *   requests       requests measured, cycling postings (default 10000)
+ *   warmup         requests issued before measuring (default 1000)
+ *   dispatch       milliseconds each dispatched event takes (default 0)
+ *   slo-p99        fails when p99 latency exceeds these milliseconds
+ *   slo-errors     fails when the error rate exceeds this percentage
+ * 
+ * With a rate given, latency counts from when each request was scheduled so
+ * that a stalled service is not hidden by requests held back behind it.
+ */
+public class ReplayHarness {
+    static volatile MultiEndpointApi.Dispatcher dispatcher = null;
+    private final MultiEndpointApi<?, ?, ?> service;
+    private final List<Replayed> postings;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final int concurrency;
+    private final double rate;
+
+    /**
+     * Echo service handing queued events to the harness dispatcher.
+     */
+    static class ReplayApiService extends MultiEndpointApiBenchmark.BenchApiService {
+
+        @Override
+        protected MultiEndpointApi.Dispatcher eventDispatcher(final BenchContext context) {
+            return ReplayHarness.dispatcher;
+        }
+
+    }
+
+    /**
+     * Container for processing.
+     */
+    static class Replayed {
+
+        final String command;
+        final byte [] posting;
+
+        Replayed(final String command, final byte [] posting) {
+            this.command = command;
+            this.posting = posting;
+        }
+
+    }
+
+    /**
+     * Container for processing. Kept per worker and merged once done.
+     */
+    static class Stats {
+
+        long [] latencies = new long[1024];
+        int count = 0;
+        int errors = 0;
+
+        void record(final long nanos, final boolean failed) {
+            if (this.count == this.latencies.length)
+            {
+                this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+            }
+
+            this.latencies[this.count++] = nanos;
+
+            if (failed == true)
+            {
+                this.errors++;
+            }
+        }
+
+        void merge(final Stats other) {
+            for (int i = 0; i < other.count; i++)
+            {
+                this.record(other.latencies[i], false);
+            }
+
+            this.errors += other.errors;
+        }
+
+        double percentile(final double p) {
+            if (this.count == 0)
+            {
+                return 0.0;
+            }
+
+            final int at = (int) Math.ceil(p / 100.0 * this.count) - 1;
+
+            return this.latencies[Math.max(0, Math.min(at, this.count - 1))] / 1e6;
+        }
+
+        double errorRate() {
+            return this.count > 0 ? 100.0 * this.errors / this.count : 0.0;
+        }
+
+        void sort() {
+            Arrays.sort(this.latencies, 0, this.count);
+        }
+
+    }
+
+    /**
+     * Issues requests numbered up to the given count from the shared position,
+     * recording each into the worker's stats by command when asked.
+     */
+    private Map<String, Stats> run(final AtomicLong position, final long requests, final long began, final boolean record) throws IOException {
+        final Map<String, Stats> stats = new HashMap<String, Stats>();
+        final MultiEndpointApiBenchmark.BenchApiContext context = new MultiEndpointApiBenchmark.BenchApiContext();
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        for (long i; (i = position.getAndIncrement()) < requests; )
+        {
+            final Replayed replayed = this.postings.get((int) (i % this.postings.size()));
+            final long scheduled = this.rate > 0 ? began + (long) (i * 1e9 / this.rate) : System.nanoTime();
+
+            for (long wait; (wait = scheduled - System.nanoTime()) > 0; )
+            {
+                LockSupport.parkNanos(wait);
+            }
+
+            boolean failed = true;
+
+            target.reset();
+
+            try
+            {
+                this.service.handleRequest(new ByteArrayInputStream(replayed.posting), target, context);
+
+                failed = isFailed(target.toByteArray());
+            }
+            catch (Exception eX)
+            {
+                failed = true;
+            }
+
+            final long elapsed = System.nanoTime() - scheduled;
+
+            if (record == true)
+            {
+                Stats into = stats.get(replayed.command);
+
+                if (into == null)
+                {
+                    stats.put(replayed.command, into = new Stats());
+                }
+
+                into.record(elapsed, failed);
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Runs a phase across all workers and merges what they recorded.
+     */
+    private Map<String, Stats> phase(final long requests, final boolean record) throws Exception {
+        final ExecutorService workers = Executors.newFixedThreadPool(this.concurrency);
+        final List<Future<Map<String, Stats>>> pending = new ArrayList<Future<Map<String, Stats>>>();
+        final AtomicLong position = new AtomicLong();
+        final long began = System.nanoTime();
+
+        try
+        {
+            for (int i = 0; i < this.concurrency; i++)
+            {
+                pending.add(workers.submit(() -> this.run(position, requests, began, record)));
+            }
+
+            final Map<String, Stats> merged = new TreeMap<String, Stats>();
+
+            for (final Future<Map<String, Stats>> future : pending)
+            {
+                for (final Map.Entry<String, Stats> entry : future.get().entrySet())
+                {
+                    Stats into = merged.get(entry.getKey());
+
+                    if (into == null)
+                    {
+                        merged.put(entry.getKey(), into = new Stats());
+                    }
+
+                    into.merge(entry.getValue());
+                }
+            }
+
+            return merged;
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Treats a response as failed unless its results report success.
+     */
+    private static boolean isFailed(final byte [] response) throws IOException {
+        try (final JsonParser parser = MultiEndpointApi.mapper.getFactory().createParser(response))
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                return true;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                final String name = parser.getCurrentName();
+
+                parser.nextToken();
+
+                if (name.equals("results") == true)
+                {
+                    return parser.getText().equalsIgnoreCase("success") == false;
+                }
+
+                parser.skipChildren();
+            }
+        }
+
+        return true;
+    }
+
+    private static String row(final String label, final Stats stats) {
+        return String.format
+            ( "%-24s %9d %7.2f%% %9.3f %9.3f %9.3f %9.3f %9.3f"
+            , label
+            , stats.count
+            , stats.errorRate()
+            , stats.percentile(50)
+            , stats.percentile(90)
+            , stats.percentile(99)
+            , stats.percentile(99.9)
+            , stats.percentile(100)
+            );
+    }
+
+    private static List<Replayed> load(final String file) throws IOException {
+        final List<Replayed> postings = new ArrayList<Replayed>();
+
+        try (final BufferedReader reader = new BufferedReader
+            ( new InputStreamReader
+                ( file != null ? new FileInputStream(file) : ReplayHarness.class.getResourceAsStream("/replay.jsonl")
+                , "utf8"
+                )
+            ))
+        {
+            for (String line; (line = reader.readLine()) != null; )
+            {
+                if (line.trim().isEmpty() == true || line.trim().startsWith("#") == true)
+                {
+                    continue;
+                }
+
+                postings.add(new Replayed
+                    ( MultiEndpointApi.mapper.readValue(line, MultiEndpointApi.Posting.class).command
+                    , line.getBytes("utf8")
+                    ));
+            }
+        }
+
+        if (postings.isEmpty() == true)
+        {
+            throw new IOException("No postings to replay");
+        }
+
+        return postings;
+    }
+
+    ReplayHarness(final MultiEndpointApi<?, ?, ?> service, final List<Replayed> postings, final int concurrency, final double rate, final long dispatchMillis) {
+        this.service = service;
+        this.postings = postings;
+        this.concurrency = concurrency;
+        this.rate = rate;
+
+        ReplayHarness.dispatcher = (region, name, qualify, payload) ->
+        {
+            this.dispatched.incrementAndGet();
+
+            if (dispatchMillis > 0)
+            {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(dispatchMillis));
+            }
+        };
+    }
+
+    public static void main(final String [] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+
+        for (final String arg : args)
+        {
+            final int at = arg.indexOf('=');
+
+            if (at > 0)
+            {
+                options.put(arg.substring(0, at), arg.substring(at + 1));
+            }
+        }
+
+        final java.lang.reflect.Constructor<?> constructor = Class.forName
+            ( options.getOrDefault("service", ReplayApiService.class.getName())
+            ).getDeclaredConstructor();
+
+        constructor.setAccessible(true);
+
+        final ReplayHarness harness = new ReplayHarness
+            ( (MultiEndpointApi<?, ?, ?>) constructor.newInstance()
+            , load(options.get("file"))
+            , Integer.parseInt(options.getOrDefault("concurrency", "8"))
+            , Double.parseDouble(options.getOrDefault("rate", "0"))
+            , Long.parseLong(options.getOrDefault("dispatch", "0"))
+            );
+
+        final long requests = Long.parseLong(options.getOrDefault("requests", "10000"));
+
+        harness.phase(Long.parseLong(options.getOrDefault("warmup", "1000")), false);
+        harness.dispatched.set(0);
+
+        final long began = System.nanoTime();
+        final Map<String, Stats> stats = harness.phase(requests, true);
+        final double seconds = (System.nanoTime() - began) / 1e9;
+        final Stats overall = new Stats();
+
+        System.out.println(String.format
+            ( "%-24s %9s %8s %9s %9s %9s %9s %9s"
+            , "command", "requests", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"
+            ));
+
+        for (final Map.Entry<String, Stats> entry : stats.entrySet())
+        {
+            entry.getValue().sort();
+            overall.merge(entry.getValue());
+
+            System.out.println(row(entry.getKey(), entry.getValue()));
+        }
+
+        overall.sort();
+
+        System.out.println(row("(all)", overall));
+        System.out.println(String.format
+            ( "%d requests in %.3f s at concurrency %d: %.1f requests/s, %d events dispatched"
+            , overall.count
+            , seconds
+            , harness.concurrency
+            , overall.count / seconds
+            , harness.dispatched.get()
+            ));
+
+        boolean violated = false;
+
+        if (options.containsKey("slo-p99") == true && overall.percentile(99) > Double.parseDouble(options.get("slo-p99")))
+        {
+            System.out.println(String.format("SLO violated: p99 %.3f ms exceeds %s ms", overall.percentile(99), options.get("slo-p99")));
+            violated = true;
+        }
+
+        if (options.containsKey("slo-errors") == true && overall.errorRate() > Double.parseDouble(options.get("slo-errors")))
+        {
+            System.out.println(String.format("SLO violated: error rate %.2f%% exceeds %s%%", overall.errorRate(), options.get("slo-errors")));
+            violated = true;
+        }
+
+        System.exit(violated == true ? 1 : 0);
+    }
+
+}
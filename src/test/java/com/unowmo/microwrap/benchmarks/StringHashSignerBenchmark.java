@@ -0,0 +1,39 @@
+package com.unowmo.microwrap.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import com.unowmo.microwrap.*;
+
+/**
+ * Compares signing with a newly constructed signer against signing with one
+ * borrowed from the pooled factory, as done per authenticated request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringHashSignerBenchmark {
+    private final String secretKey = Base64.getEncoder().encodeToString("benchmarking secret key".getBytes());
+    private final String content = "eyAidHlwIjogIkpXVCIsICJhbGciOiAiSFMyNTYiIH0=.eyAidWlkIjogInVzZXIiLCAiaXNzIjogImJlbmNoIiwgImlhdCI6IDEsICJleHAiOiAyIH0=";
+
+    @Benchmark
+    public String constructed() throws IOException {
+        try (final StringHashSigner signer = new StringHashSigner(this.secretKey))
+        {
+            return signer.sign(this.content);
+        }
+    }
+
+    @Benchmark
+    public String pooled() throws IOException {
+        try (final StringHashSigner signer = StringHashSigner.factory(this.secretKey).acquire())
+        {
+            return signer.sign(this.content);
+        }
+    }
+
+}
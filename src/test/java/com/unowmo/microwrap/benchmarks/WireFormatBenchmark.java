@@ -0,0 +1,90 @@
+package com.unowmo.microwrap.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import com.fasterxml.jackson.databind.*;
+import com.unowmo.microwrap.*;
+
+/**
+ * Compares json against the Smile and CBOR binary wire formats for a medium
+ * posting, end to end and for posting and returns encoding on their own. The
+ * encoded posting and returns sizes are printed on setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+    private final MultiEndpointApiBenchmark.BenchApiService service = new MultiEndpointApiBenchmark.BenchApiService();
+    private final MultiEndpointApiBenchmark.BenchApiContext context = new MultiEndpointApiBenchmark.BenchApiContext();
+    private MultiEndpointApi.Format wire = null;
+    private MultiEndpointApi.Returns returns = null;
+    private byte [] posting = null;
+
+    @Param({ "json", "smile", "cbor" })
+    public String format = "json";
+
+    @Setup
+    public void setup() throws IOException {
+        final StringBuilder o = new StringBuilder();
+
+        for (int i = 0; i < 160; i++)
+        {
+            o.append(i > 0 ? ", " : "").append(String.format
+                ( "{ ''id'': %d, ''name'': ''row %d'', ''note'': ''recorded for replay'', ''score'': %d.5, ''active'': %b }"
+                , i
+                , i
+                , i * 7
+                , i % 2 == 0
+                ));
+        }
+
+        final JsonNode request = MultiEndpointApi.mapper.readTree(String.format
+            ( "{ ''command'': ''echo'', ''trusted'': '''', ''request'': { ''o'': [ %s ] } }"
+            , o
+            ).replace("''", "\""));
+
+        this.wire = MultiEndpointApi.Format.valueOf(this.format.toUpperCase());
+        this.posting = this.wire.mapper().writeValueAsBytes(request);
+        this.returns = new MultiEndpointApi.Returns("success", request.get("request").get("o"));
+
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        this.service.write(this.returns, target, new Date(), this.wire);
+
+        System.out.println(String.format
+            ( "%s posting %d bytes, returns %d bytes"
+            , this.format
+            , this.posting.length
+            , target.size()
+            ));
+    }
+
+    @Benchmark
+    public int handleRequest() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        this.service.handleRequest(new ByteArrayInputStream(this.posting), target, this.context);
+
+        return target.size();
+    }
+
+    @Benchmark
+    public MultiEndpointApi.Posting readPosting() throws IOException {
+        return this.wire.mapper().readValue(this.posting, MultiEndpointApi.Posting.class);
+    }
+
+    @Benchmark
+    public int writeReturns() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        this.service.write(this.returns, target, new Date(), this.wire);
+
+        return target.size();
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.unowmo.microwrap.tests;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import org.junit.*;
 import com.fasterxml.jackson.databind.*;
@@ -65,72 +67,2227 @@ public class ModuleTest {
             super(new Handler [0]);
         }
 
+		@Override
+		protected JsonWebUserKeyring trustedKeyring() {
+			return this.keyring;
+		}
+
+		private JsonWebUserKeyring keyring = null;
+
+		@SafeVarargs
+		public MockedApiService(final MultiEndpointApi.Handled<HandleApiContext, HandleApiWrapped> ... hooks) {
+            super(hooks);
+        }
+
+    }
+
+    static class CachedApiService extends CachedServiceApi<CachedApiService.CachedContext, CachedApiService.CachedWrapper, CachedApiService.CachedWrapped> {
+
+        static class CachedContext extends CachedServiceApi.ContainerContext {
+
+            com.amazonaws.AmazonWebServiceClient access() {
+                return this.cacher.access(com.amazonaws.services.lambda.AWSLambdaClientBuilder.class);
+            }
+
+            com.amazonaws.AmazonWebServiceClient accessAsync() {
+                return this.cacher.accessAsync(com.amazonaws.services.lambda.AWSLambdaAsyncClientBuilder.class);
+            }
+
+        }
+
+        static class CachedWrapped extends MultiEndpointApi.WrappedResources<CachedContext> {
+
+            @Override
+            public void onCommit(final CachedContext context, final Returns returns, final Date started) {
+            }
+
+        }
+
+        static class CachedWrapper extends MultiEndpointApi.ResourceWrapping<CachedContext> {
+
+            @Override
+            public void onCommit(final CachedContext context, final Date started) {
+            }
+
+            @Override
+            public void close() {
+            }
+
+        }
+
+        @Override
+        protected CachedContext allocateResourceContext(final String region, final String config) {
+            return new CachedContext();
+        }
+
+        @Override
+        protected CachedWrapper allocateResourceWrapper(final CachedContext context) {
+            return new CachedWrapper();
+        }
+
+        @Override
+        protected CachedWrapped allocateWrappedResource(final CachedContext context, final CachedWrapper wrapper) {
+            return new CachedWrapped();
+        }
+
+        /**
+         * Fixes up a context outside of a request, with the given settings
+         * added ahead of those from the environment.
+         */
+        CachedContext fixup(final String region, final String ... settings) throws IOException {
+            final CachedContext context = new CachedContext();
+
+            for (int i = 0; i + 1 < settings.length; i += 2)
+            {
+                context.params.add(settings[i], settings[i + 1]);
+            }
+
+            this.fixupRequestContainer(context, "test", "", region, "test", context.logger);
+
+            return context;
+        }
+
+        @SuppressWarnings("unchecked")
+        CachedApiService() {
+            super(new Handled [0]);
+        }
+
+    }
+
+    static abstract class AnnotatedApiService extends MultiEndpointApi<AnnotatedApiService.AnnotatedContext, AnnotatedApiService.AnnotatedWrapper, AnnotatedApiService.AnnotatedWrapped> {
+
+        static class AnnotatedContext extends MultiEndpointApi.ContainerContext {
+
+        }
+
+        static class AnnotatedWrapped extends MultiEndpointApi.WrappedResources<AnnotatedContext> {
+
+            @Override
+            public void onCommit(final AnnotatedContext context, final Returns returns, final Date started) {
+            }
+
+        }
+
+        static class AnnotatedWrapper extends MultiEndpointApi.ResourceWrapping<AnnotatedContext> {
+
+            @Override
+            public void onCommit(final AnnotatedContext context, final Date started) {
+            }
+
+            @Override
+            public void close() throws Exception {
+            }
+
+        }
+
+        public static class Summed {
+            public int a;
+            public int b;
+        }
+
+        @Command("getsum")
+        Object getSum(final AnnotatedContext context, final Summed request) {
+            return Collections.singletonMap("sum", request.a + request.b);
+        }
+
+        @Command("getlater")
+        CompletionStage<Map<String, Integer>> getLater(final JsonNode request, final Date started) {
+            return CompletableFuture.completedFuture(Collections.singletonMap("twice", request.get("n").asInt() * 2));
+        }
+
+        @Override
+        protected AnnotatedContext allocateResourceContext(final String region, final String config) throws IOException {
+            return new AnnotatedContext();
+        }
+
+        @Override
+        protected AnnotatedWrapper allocateResourceWrapper(final AnnotatedContext containerContext) throws IOException {
+            return new AnnotatedWrapper();
+        }
+
+        @Override
+        protected AnnotatedWrapped allocateWrappedResource(final AnnotatedContext containerContext, final AnnotatedWrapper resourceWrapper) throws IOException {
+            return new AnnotatedWrapped();
+        }
+
+        AnnotatedApiService() {
+            super(null);
+        }
+
+    }
+    
+    @Test
+    public void testModule() {
+        final MockedApiService handler = new MockedApiService();
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+    	System.out.println("Testing...");
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( String.format
+                        ( "{ ''command'': ''getappdetail''"
+                        + ", ''request'':"
+                        + " { ''o'':"
+                        + " { ''options'': ''testing''"
+                        + " }"
+                        + " }"
+                        + ", ''trusted'': ''''"
+                        + " }"
+                        ).replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+            
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to access app details"
+                    , r.results.equalsIgnoreCase("success") == true
+                    );
+            }
+            finally
+            {
+                System.out.println
+                    ( buffer.toString()
+                     );
+                
+                buffer.reset();
+            }
+        }
+        catch (AssertionError eX)
+        {
+            throw eX;
+        }
+        catch (Exception eX)
+        {
+            Assert.fail
+                ( "Oops because " + eX.getMessage().toLowerCase()
+                );
+        }
+        finally
+        {
+            System.out.println
+                ( "Done."
+                );
+        }
+    }
+
+    @Test
+    public void testAsyncCommand() {
+        final MockedApiService handler = new MockedApiService
+            ( new MultiEndpointApi.AsyncHandled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getsum") {
+                @Override
+                public CompletionStage<Object> doCommandAsync(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    final CompletableFuture<Integer> a = context.tasks.fork(() -> 20);
+                    final CompletableFuture<Integer> b = context.tasks.fork(() -> 22);
+
+                    return a.thenCombine(b, (x, y) -> (Object) Collections.singletonMap("sum", x + y));
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getsum'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+            
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to run async command"
+                    , r.results.equalsIgnoreCase("success") == true && r.o.get("sum").asInt() == 42
+                    );
+            }
+        }
+        catch (AssertionError eX)
+        {
+            throw eX;
+        }
+        catch (Exception eX)
+        {
+            Assert.fail
+                ( "Oops because " + eX.getMessage().toLowerCase()
+                );
+        }
+    }
+
+    @Test
+    public void testTaskScope() throws Exception {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+        // Tasks past the scope limit queue, and results keep their order
+        // however the tasks finish.
+
+        for (int i = 0; i < 6; i++)
+        {
+            final int n = i;
+
+            tasks.add(() -> {
+                peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+
+                try
+                {
+                    Thread.sleep((6 - n) * 15);
+                }
+                finally
+                {
+                    active.decrementAndGet();
+                }
+
+                return n;
+            });
+        }
+
+        try (final MultiEndpointApi.TaskScope scope = new MultiEndpointApi.TaskScope(new MultiEndpointApi.Params(), 2))
+        {
+            Assert.assertEquals
+                ( "Failed to keep results in order"
+                , Arrays.asList(0, 1, 2, 3, 4, 5)
+                , scope.forkJoin(tasks)
+                );
+
+            Assert.assertEquals
+                ( "Failed to hold running tasks to scope limit"
+                , 2
+                , peak.get()
+                );
+        }
+
+        // A failing task cancels the others, interrupting those running and
+        // dropping those queued.
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicBoolean queuedRan = new AtomicBoolean();
+        final long cancelled = MultiEndpointApi.counters.add("tasks.cancelled", 0);
+
+        try (final MultiEndpointApi.TaskScope scope = new MultiEndpointApi.TaskScope(new MultiEndpointApi.Params(), 2))
+        {
+            final CompletableFuture<Object> blocked = scope.fork(() -> {
+                try
+                {
+                    Thread.sleep(10000);
+                }
+                catch (InterruptedException eX)
+                {
+                    interrupted.countDown();
+                }
+
+                return null;
+            });
+            final CompletableFuture<Object> failing = scope.fork(() -> {
+                Thread.sleep(50);
+
+                throw new IOException("Ledger went away");
+            });
+            final CompletableFuture<Object> queued = scope.fork(() -> queuedRan.getAndSet(true));
+
+            try
+            {
+                scope.join();
+
+                Assert.fail
+                    ( "Failed to raise sub-task failure"
+                    );
+            }
+            catch (IOException eX)
+            {
+                Assert.assertEquals
+                    ( "Failed to raise sub-task failure"
+                    , "Ledger went away"
+                    , eX.getMessage()
+                    );
+            }
+
+            Assert.assertTrue
+                ( "Failed to cancel outstanding sub-tasks"
+                , interrupted.await(5, TimeUnit.SECONDS) == true && blocked.isCancelled() == true && queued.isCancelled() == true && failing.isCompletedExceptionally() == true
+                );
+
+            Thread.sleep(50);
+
+            Assert.assertTrue
+                ( "Failed to drop queued sub-task"
+                , queuedRan.get() == false && MultiEndpointApi.counters.add("tasks.cancelled", 0) >= cancelled + 2
+                );
+
+            Assert.assertTrue
+                ( "Failed to refuse sub-tasks once closed"
+                , scope.fork(() -> 1).isCancelled()
+                );
+        }
+
+        // Cancelled tasks give back their slot, whether queued or running, so
+        // later ones still run.
+
+        try (final MultiEndpointApi.TaskScope scope = new MultiEndpointApi.TaskScope(new MultiEndpointApi.Params(), 1))
+        {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CompletableFuture<Object> running = scope.fork(() -> {
+                started.countDown();
+                Thread.sleep(10000);
+
+                return null;
+            });
+            final CompletableFuture<Object> queued = scope.fork(() -> "queued");
+
+            Assert.assertTrue
+                ( "Failed to start first sub-task"
+                , started.await(5, TimeUnit.SECONDS)
+                );
+
+            queued.cancel(true);
+            running.cancel(true);
+
+            Assert.assertEquals
+                ( "Failed to release slots of cancelled sub-tasks"
+                , "later"
+                , scope.fork(() -> "later").get(5, TimeUnit.SECONDS)
+                );
+        }
+    }
+
+    @Test
+    public void testTaskScopeRequest() throws IOException, InterruptedException {
+        final CountDownLatch abandoned = new CountDownLatch(1);
+        final CountDownLatch overdue = new CountDownLatch(1);
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getforked") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    final CountDownLatch running = new CountDownLatch(1);
+
+                    context.tasks.fork(() -> {
+                        running.countDown();
+
+                        try
+                        {
+                            Thread.sleep(10000);
+                        }
+                        catch (InterruptedException eX)
+                        {
+                            abandoned.countDown();
+                        }
+
+                        return null;
+                    });
+
+                    try
+                    {
+                        running.await();
+                    }
+                    catch (InterruptedException eX)
+                    {
+                        throw new IOException("Interrupted waiting on sub-task", eX);
+                    }
+
+                    return "forked";
+                }
+            }
+            , new MockedApiService.Handler("getjoined") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    context.tasks.fork(() -> {
+                        try
+                        {
+                            Thread.sleep(10000);
+                        }
+                        catch (InterruptedException eX)
+                        {
+                            overdue.countDown();
+                        }
+
+                        return null;
+                    });
+
+                    context.tasks.join();
+
+                    return "joined";
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+        final List<String> results = new ArrayList<String>();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+    	context.setRemainingTimeInMillis(1000);
+
+        for (final String command : new String [] { "getforked", "getjoined" })
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( ("{ ''command'': ''" + command + "'', ''request'': { }, ''trusted'': '''' }").replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    results.add(r.code != null ? r.code : r.results);
+                }
+            }
+        }
+
+        Assert.assertTrue
+            ( "Failed to cancel sub-tasks left running when request ended"
+            , results.get(0).equalsIgnoreCase("success") == true && abandoned.await(5, TimeUnit.SECONDS) == true
+            );
+
+        Assert.assertTrue
+            ( "Failed to cut off join at request deadline"
+            , results.get(1).equals("deadline") == true && overdue.await(5, TimeUnit.SECONDS) == true
+            );
+    }
+
+    @Test
+    public void testSignerPool() throws IOException {
+        final Random random = new Random();
+        final byte [] raw = new byte [32];
+
+        random.nextBytes(raw);
+
+        final String secretKey = Base64.getEncoder().encodeToString(raw);
+
+        random.nextBytes(raw);
+
+        final String otherKey = Base64.getEncoder().encodeToString(raw);
+        final StringHashSigner.Factory factory = StringHashSigner.factory(secretKey);
+        final StringHashSigner plain = new StringHashSigner(secretKey);
+
+        Assert.assertSame
+            ( "Failed to share factory for secret key"
+            , factory
+            , StringHashSigner.factory(secretKey)
+            );
+
+        // Pooled signers, fresh or reused, sign the same as unpooled ones.
+
+        for (final String content : new String [] { "first", "second", "" })
+        {
+            try (final StringHashSigner signer = factory.acquire())
+            {
+                Assert.assertEquals
+                    ( "Failed to match unpooled signature"
+                    , plain.sign(content)
+                    , signer.sign(content)
+                    );
+            }
+        }
+
+        Assert.assertEquals
+            ( "Failed to return mac to pool"
+            , 1
+            , factory.idle()
+            );
+
+        // Closing twice returns the mac once, else two signers would later
+        // share one mac.
+
+        final StringHashSigner twice = factory.acquire();
+
+        Assert.assertEquals
+            ( "Failed to take mac from pool"
+            , 0
+            , factory.idle()
+            );
+
+        twice.close();
+        twice.close();
+
+        Assert.assertEquals
+            ( "Failed to ignore second close"
+            , 1
+            , factory.idle()
+            );
+
+        // A pooled signer re-keyed with initialize signs with the new key and
+        // keeps its mac out of the pool.
+
+        try (final StringHashSigner signer = factory.acquire())
+        {
+            Assert.assertEquals
+                ( "Failed to sign with new key"
+                , new StringHashSigner(otherKey).sign("content")
+                , signer.initialize(otherKey).sign("content")
+                );
+        }
+
+        Assert.assertEquals
+            ( "Failed to keep re-keyed mac out of pool"
+            , 0
+            , factory.idle()
+            );
+
+        try (final StringHashSigner signer = factory.acquire())
+        {
+            Assert.assertEquals
+                ( "Failed to sign with pooled key after re-keying"
+                , plain.sign("content")
+                , signer.sign("content")
+                );
+        }
+
+        // Macs past the pool limit are dropped on close.
+
+        final List<StringHashSigner> signers = new ArrayList<StringHashSigner>();
+
+        for (int i = 0; i < 100; i++)
+        {
+            signers.add(factory.acquire());
+        }
+
+        for (final StringHashSigner signer : signers)
+        {
+            signer.close();
+        }
+
+        Assert.assertEquals
+            ( "Failed to cap pooled macs"
+            , 64
+            , factory.idle()
+            );
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getrows") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    final Map<String, Object> rows = new TreeMap<String, Object>();
+                    final StringBuilder text = new StringBuilder();
+
+                    while (text.length() < 512 * 1024)
+                    {
+                        text.append("row ").append(text.length()).append(", ");
+                    }
+
+                    rows.put("rows", text.toString());
+                    rows.put("running", "((running))");
+
+                    return rows;
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final String encoding : new String [] { "gzip", "" })
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( ("{ ''command'': ''getrows'', ''request'': { }, ''trusted'': '''', ''encoding'': ''" + encoding + "'' }").replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                Assert.assertTrue
+                    ( "Failed to compress large results"
+                    , buffer.toString("utf8").startsWith("{\"encoded\":\"gzip+base64\"") == encoding.equals("gzip")
+                    );
+
+                try (Response r = mapper.readValue(MultiEndpointApi.readReturns(new ByteArrayInputStream(buffer.toByteArray())), Response.class))
+                {
+                    Assert.assertTrue
+                        ( "Failed to decode large results"
+                        , r.results.equalsIgnoreCase("success") == true && r.o.get("rows").asText().length() >= 512 * 1024 && r.o.get("running").asText().matches("[0-9]+") == true
+                        );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWireFormat() throws IOException {
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getecho") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    return mapper.readTree(posting).get("o");
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final MultiEndpointApi.Format format : new MultiEndpointApi.Format [] { MultiEndpointApi.Format.SMILE, MultiEndpointApi.Format.CBOR })
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( format.mapper().writeValueAsBytes
+                            ( mapper.readTree("{ ''command'': ''getecho'', ''request'': { ''o'': { ''name'': ''binary'', ''id'': 42 } }, ''trusted'': '''' }".replace("''",  "\""))
+                            )
+                        )
+                    , buffer
+                    , context
+                    );
+
+                Assert.assertTrue
+                    ( "Failed to answer in request format"
+                    , MultiEndpointApi.Format.sniff(buffer.toByteArray(), buffer.size()) == format
+                    );
+
+                try (Response r = format.mapper().readValue(buffer.toByteArray(), Response.class))
+                {
+                    Assert.assertTrue
+                        ( "Failed to echo binary request"
+                        , r.results.equalsIgnoreCase("success") == true && r.o.get("name").asText().equals("binary") == true && r.o.get("id").asInt() == 42
+                        );
+                }
+            }
+        }
+    }
+
+    static class Priced {
+
+        public final long cents = 1250;
+        public final String currency = "EUR";
+
+        @Override
+        public String toString() {
+            return "12.50 EUR";
+        }
+
+    }
+
+    @Test
+    public void testWireFormatModules() throws IOException {
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getpriced") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    return new Priced();
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+        final List<String> answered = new ArrayList<String>();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        // Modules registered on the json mapper after binary responses were
+        // already written still apply to later ones.
+
+        for (final String command : new String [] { "getappdetail", "getpriced" })
+        {
+            if (command.equals("getpriced") == true)
+            {
+                MultiEndpointApi.mapper.registerModule
+                    ( new com.fasterxml.jackson.databind.module.SimpleModule().addSerializer(Priced.class, com.fasterxml.jackson.databind.ser.std.ToStringSerializer.instance)
+                    );
+            }
+
+            for (final MultiEndpointApi.Format format : MultiEndpointApi.Format.values())
+            {
+                try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+                {
+                    handler.handleRequest
+                        ( new ByteArrayInputStream
+                            ( format.mapper().writeValueAsBytes
+                                ( mapper.readTree(("{ ''command'': ''" + command + "'', ''request'': { }, ''trusted'': '''' }").replace("''",  "\""))
+                                )
+                            )
+                        , buffer
+                        , context
+                        );
+
+                    try (Response r = format.mapper().readValue(buffer.toByteArray(), Response.class))
+                    {
+                        answered.add(format + " " + (r.o.isTextual() == true ? r.o.asText() : r.o.has("version") == true ? "detail" : r.o.path("cents").asText()));
+                    }
+                }
+            }
+        }
+
+        Assert.assertEquals
+            ( "Failed to apply json mapper modules to binary formats"
+            , Arrays.asList("JSON detail", "SMILE detail", "CBOR detail", "JSON 12.50 EUR", "SMILE 12.50 EUR", "CBOR 12.50 EUR")
+            , answered
+            );
+    }
+
+    @Test
+    public void testStreamed() throws IOException {
+        final List<String> committed = new ArrayList<String>();
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getstream") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    context.queueRequest("stream", "", "{ }");
+                    committed.add("handled");
+
+                    return java.util.stream.IntStream.range(0, 5000).mapToObj((i) -> Collections.singletonMap("row", i)).onClose(() -> committed.add("closed"));
+                }
+            }
+            , new MockedApiService.Handler("getbroken") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    return (MultiEndpointApi.Streamed) (sink) -> {
+                        sink.write("first");
+
+                        throw new IOException("Export source went away");
+                    };
+                }
+            }
+            , new MockedApiService.Handler("getpartial") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    return Arrays.asList(new Partial(false), new Partial(true), new Partial(false)).iterator();
+                }
+            }
+            ) {
+            @Override
+            protected MultiEndpointApi.Dispatcher eventDispatcher(final MockedApiService.HandleApiContext context) {
+                return (region, service, qualify, payload) -> committed.add("dispatched");
+            }
+        };
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getstream'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to stream result"
+                    , r.results.equalsIgnoreCase("success") == true && r.o.size() == 5000 && r.o.get(4999).get("row").asInt() == 4999
+                    );
+
+                Assert.assertEquals
+                    ( "Failed to commit after streaming"
+                    , Arrays.asList("handled", "closed", "dispatched")
+                    , committed
+                    );
+            }
+        }
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getbroken'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to report broken stream"
+                    , r.results.startsWith("Failed because export source went away") == true && "internal".equals(r.code) == true && r.o.size() == 1
+                    );
+            }
+        }
+
+        // An element failing partway through its own serialization is left
+        // out whole, so the response is still well-formed.
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getpartial'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to report stream broken inside an element"
+                    , r.results.startsWith("Failed because row export went away") == true && r.code != null && r.o.size() == 1 && r.o.get(0).get("row").asText().equals("exported") == true
+                    );
+            }
+        }
+    }
+
+    @com.fasterxml.jackson.annotation.JsonPropertyOrder({ "row", "detail" })
+    static class Partial {
+
+        private final boolean broken;
+
+        public String getRow() {
+            return "exported";
+        }
+
+        public String getDetail() {
+            if (this.broken == true)
+            {
+                throw new IllegalStateException("Row export went away");
+            }
+
+            return "complete";
+        }
+
+        Partial(final boolean broken) {
+            this.broken = broken;
+        }
+
+    }
+
+    @Test
+    public void testCached() throws IOException {
+        final List<String> handled = new ArrayList<String>();
+        final MockedApiService handler = new MockedApiService
+            ( new MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getcached", MultiEndpointApi.Authenticate.NONE, 60) {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    handled.add(posting);
+
+                    return mapper.readTree(posting).get("o");
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+        final List<String> responses = new ArrayList<String>();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final String request : new String []
+            { "{ ''o'': { ''a'': 1, ''b'': 2 } }"
+            , "{ ''o'': { ''b'': 2, ''a'': 1 } }"
+            , "{ ''o'': { ''a'': 1, ''b'': 3 } }"
+            , "{ ''o'': ''((running))'' }"
+            , "{ ''o'': ''((running))'' }"
+            })
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( ("{ ''command'': ''getcached'', ''request'': " + request + ", ''trusted'': '''' }").replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                responses.add(buffer.toString("utf8"));
+            }
+        }
+
+        Assert.assertTrue
+            ( "Failed to serve cached result"
+            , handled.size() == 4 && responses.get(0).equals(responses.get(1)) == true && responses.get(0).equals(responses.get(2)) == false
+            );
+
+        // Failures such as a missed deadline are answered but never cached.
+
+        final AtomicInteger late = new AtomicInteger();
+        final MockedApiService lateHandler = new MockedApiService
+            ( new MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getcachedlate", MultiEndpointApi.Authenticate.NONE, 60) {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    if (late.incrementAndGet() == 1)
+                    {
+                        try
+                        {
+                            Thread.sleep(context.remainingMillis() + 10000);
+                        }
+                        catch (InterruptedException eX)
+                        {
+                        }
+                    }
+
+                    return "prompt";
+                }
+            }
+            );
+        final List<String> lateResults = new ArrayList<String>();
+
+        context.setRemainingTimeInMillis(1000);
+
+        for (int i = 0; i < 2; ++i)
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                lateHandler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( "{ ''command'': ''getcachedlate'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    lateResults.add(r.results);
+                }
+            }
+        }
+
+        Assert.assertTrue
+            ( "Failed to leave failed result out of cache"
+            , late.get() == 2 && lateResults.get(0).startsWith("Failed because handler did not complete") == true && lateResults.get(1).equals("success") == true
+            );
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final MockedApiService handler = new MockedApiService
+            ( new MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getshared", MultiEndpointApi.Authenticate.NONE, 0, true) {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    handled.incrementAndGet();
+
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException eX)
+                    {
+                        throw new IOException(eX);
+                    }
+
+                    return mapper.readTree(posting).get("o");
+                }
+            }
+            );
+        final ExecutorService callers = Executors.newFixedThreadPool(4);
+        final long shared = MultiEndpointApi.counters.add("coalesce.shared", 0);
+        final List<Future<String>> responses = new ArrayList<Future<String>>();
+
+        try
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                responses.add(callers.submit(() -> {
+                    final MockedApiContext context = new MockedApiContext();
+
+                    context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+                    try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+                    {
+                        handler.handleRequest
+                            ( new ByteArrayInputStream
+                                ( "{ ''command'': ''getshared'', ''request'': { ''o'': 42 }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                                )
+                            , buffer
+                            , context
+                            );
+
+                        return buffer.toString("utf8");
+                    }
+                }));
+            }
+
+            for (long waited = 0; MultiEndpointApi.counters.add("coalesce.shared", 0) < shared + 3 && waited < 10000; waited += 10)
+            {
+                Thread.sleep(10);
+            }
+
+            release.countDown();
+
+            for (final Future<String> response : responses)
+            {
+                try (Response r = mapper.readValue(response.get(), Response.class))
+                {
+                    Assert.assertTrue
+                        ( "Failed to share coalesced result"
+                        , r.results.equalsIgnoreCase("success") == true && r.o.asInt() == 42
+                        );
+                }
+            }
+
+            Assert.assertEquals
+                ( "Failed to coalesce identical requests"
+                , 1
+                , handled.get()
+                );
+        }
+        finally
+        {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDeadline() throws IOException {
+        final Map<String, Thread> threads = new ConcurrentHashMap<String, Thread>();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getstuck") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    threads.put("getstuck", Thread.currentThread());
+
+                    try
+                    {
+                        Thread.sleep(context.remainingMillis() + 10000);
+                    }
+                    catch (InterruptedException eX)
+                    {
+                        interrupted.countDown();
+                    }
+
+                    return "late";
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+        final long started = System.currentTimeMillis();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+    	context.setRemainingTimeInMillis(1000);
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getstuck'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to cut off request at deadline"
+                    , r.results.startsWith("Failed because handler did not complete before request deadline") == true && System.currentTimeMillis() - started < 1000
+                    );
+            }
+        }
+
+        try
+        {
+            Assert.assertTrue
+                ( "Failed to interrupt handler past deadline"
+                , interrupted.await(5, TimeUnit.SECONDS)
+                );
+        }
+        catch (InterruptedException eX)
+        {
+            Assert.fail
+                ( "Oops because " + eX.getMessage()
+                );
+        }
+
+        Assert.assertTrue
+            ( "Failed to run handler in place or clear its interrupt"
+            , threads.get("getstuck") == Thread.currentThread() && Thread.interrupted() == false
+            );
+
+        // Where opted in, handlers run detached so that one ignoring the
+        // interrupt is still cut off, with its wrapper released only once it
+        // finally exits.
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        final CountDownLatch exited = new CountDownLatch(1);
+        final AtomicBoolean closedEarly = new AtomicBoolean(true);
+        final MockedApiService detached = new MockedApiService
+            ( new MockedApiService.Handler("getdeaf") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    threads.put("getdeaf", Thread.currentThread());
+
+                    final long until = context.deadline + 300;
+
+                    while (System.currentTimeMillis() < until)
+                    {
+                        try
+                        {
+                            Thread.sleep(Math.max(1, until - System.currentTimeMillis()));
+                        }
+                        catch (InterruptedException eX)
+                        {
+                        }
+                    }
+
+                    closedEarly.set(closed.get());
+                    exited.countDown();
+
+                    return "late";
+                }
+            }
+            ) {
+            @Override
+            protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                context.params.add("ms_deadline_detach", "true");
+            }
+
+            @Override
+            protected MockedApiService.HandleApiWrapper allocateResourceWrapper(final MockedApiService.HandleApiContext context) throws IOException {
+                return new MockedApiService.HandleApiWrapper() {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                };
+            }
+        };
+        final long restarted = System.currentTimeMillis();
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            detached.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getdeaf'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                Assert.assertTrue
+                    ( "Failed to cut off detached request at deadline"
+                    , r.results.startsWith("Failed because handler did not complete before request deadline") == true && System.currentTimeMillis() - restarted < 1000
+                    );
+            }
+        }
+
+        try
+        {
+            Assert.assertTrue
+                ( "Failed to hold wrapper until detached handler exited"
+                , exited.await(5, TimeUnit.SECONDS) == true && threads.get("getdeaf") != Thread.currentThread() && closedEarly.get() == false
+                );
+
+            final long waited = System.currentTimeMillis() + 5000;
+
+            while (closed.get() == false && System.currentTimeMillis() < waited)
+            {
+                Thread.sleep(10);
+            }
+
+            Assert.assertTrue
+                ( "Failed to release wrapper after detached handler exited"
+                , closed.get()
+                );
+        }
+        catch (InterruptedException eX)
+        {
+            Assert.fail
+                ( "Oops because " + eX.getMessage()
+                );
+        }
+    }
+
+    @Test
+    public void testOverlapped() throws IOException {
+        final Thread caller = Thread.currentThread();
+        final List<String> committed = Collections.synchronizedList(new ArrayList<String>());
+        final MockedApiService.Handler echo = new MockedApiService.Handler("getoverlap") {
+            @Override
+            public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                return mapper.readTree(posting).get("o");
+            }
+        };
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final boolean failing : new boolean [] { false, true })
+        {
+            final MockedApiService handler = new MockedApiService(echo) {
+                @Override
+                protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                    super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                    context.params.add("ms_commit_overlap", "true");
+                }
+
+                @Override
+                protected MockedApiService.HandleApiWrapped allocateWrappedResource(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapper wrapper) {
+                    return new MockedApiService.HandleApiWrapped() {
+                        @Override
+                        public void onCommit(final MockedApiService.HandleApiContext context, final Returns returns, final Date started) {
+                            // Runs before serialization, so changes to the
+                            // result are still written.
+
+                            returns.o = 43;
+
+                            committed.add(Thread.currentThread() == caller ? "wrapped" : "wrapped detached");
+                        }
+                    };
+                }
+
+                @Override
+                protected MockedApiService.HandleApiWrapper allocateResourceWrapper(final MockedApiService.HandleApiContext context) {
+                    return new MockedApiService.HandleApiWrapper() {
+                        @Override
+                        public void onCommit(final MockedApiService.HandleApiContext context, final Date started) {
+                            if (failing == true)
+                            {
+                                throw new IllegalStateException("Audit flush failed");
+                            }
+
+                            committed.add(Thread.currentThread() != caller ? "wrapper" : "wrapper in place");
+                        }
+                    };
+                }
+            };
+
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( "{ ''command'': ''getoverlap'', ''request'': { ''o'': 42 }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    if (failing == true)
+                    {
+                        Assert.assertTrue
+                            ( "Failed to report overlapped commit failure"
+                            , r.results.startsWith("Failed because wrapper failed to commit") == true && r.o == null
+                            );
+                    }
+                    else
+                    {
+                        Assert.assertTrue
+                            ( "Failed to overlap commits"
+                            , r.results.equalsIgnoreCase("success") == true && r.o.asInt() == 43 && committed.equals(Arrays.asList("wrapped", "wrapper")) == true
+                            );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPooled() throws IOException {
+        final AtomicInteger allocated = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicBoolean valid = new AtomicBoolean(true);
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getpooled") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    if (mapper.readTree(posting).get("o").asBoolean() == false)
+                    {
+                        throw new IOException("Session went away");
+                    }
+
+                    return allocated.get();
+                }
+            }
+            ) {
+            @Override
+            protected MockedApiService.HandleApiWrapper allocateResourceWrapper(final MockedApiService.HandleApiContext context) {
+                allocated.incrementAndGet();
+
+                return new MockedApiService.HandleApiWrapper() {
+                    @Override
+                    public boolean isPooled() {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean validate(final MockedApiService.HandleApiContext context) {
+                        return valid.get();
+                    }
+
+                    @Override
+                    public void close() {
+                        closed.incrementAndGet();
+                    }
+                };
+            }
+        };
+        final MockedApiContext context = new MockedApiContext();
+        final List<String> results = new ArrayList<String>();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final String succeed : new String [] { "true", "true", "true", "false", "true", "invalid" })
+        {
+            valid.set(succeed.equals("invalid") == false);
+
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( ("{ ''command'': ''getpooled'', ''request'': { ''o'': " + (succeed.equals("false") == false) + " }, ''trusted'': '''' }").replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    results.add(r.results.equalsIgnoreCase("success") == true ? r.o.asText() : "failed");
+                }
+            }
+        }
+
+        Assert.assertEquals
+            ( "Failed to reuse pooled wrappers"
+            , Arrays.asList("1", "1", "1", "failed", "2", "3")
+            , results
+            );
+
+        Assert.assertEquals
+            ( "Failed to close failed and invalid wrappers"
+            , 2
+            , closed.get()
+            );
+    }
+
+    @Test
+    public void testWebToken() throws IOException {
+        final String secretKey = "bW9kdWxlIHRlc3Rpbmcgc2VjcmV0";
+        final JsonWebUserToken minted = new JsonWebUserToken("tests", "user@example.com", secretKey, 1500000000L, 3600L);
+
+        Assert.assertEquals
+            ( "Minted token changed"
+            , "eyAidHlwIjogIkpXVCIsICJhbGciOiAiSFMyNTYiIH0=.eyAidWlkIjogInVzZXJAZXhhbXBsZS5jb20iLCAiaXNzIjogInRlc3RzIiwgImlhdCI6IDE1MDAwMDAwMDAsICJleHAiOiAxNTAwMDAzNjAwIH0=.Ws6_NuzTB1koE5jRpBpsgdF42gpCkz-Qc8qwz_rJBxM="
+            , minted.getTokened()
+            );
+
+        for (int i = 0; i < 2; ++i)
+        {
+            final JsonWebUserToken verified = JsonWebUserToken.verify("Bearer " + minted.getTokened(), secretKey, 1500000100L, mapper);
+
+            Assert.assertTrue
+                ( "Failed to verify token"
+                , verified != null && verified.getUniqued().equals("user@example.com") == true && verified.getIssuing().equals("tests") == true
+                );
+        }
+
+        Assert.assertNull
+            ( "Accepted expired token"
+            , JsonWebUserToken.verify(minted.getTokened(), secretKey, 1500003601L, mapper)
+            );
+
+        Assert.assertNull
+            ( "Accepted token signed with other key"
+            , JsonWebUserToken.verify(minted.getTokened(), "b3RoZXIgc2VjcmV0", 1500000100L, mapper)
+            );
+
+        Assert.assertNull
+            ( "Accepted tampered token"
+            , JsonWebUserToken.verify(minted.getTokened().replace(".eyAidWlk", ".eyAidWLk"), secretKey, 1500000100L, mapper)
+            );
+
+        final String quoted = "o'neil \"q\" ''pair'' back\\slash\ttab \u00e9\u20ac";
+        final JsonWebUserToken escaped = new JsonWebUserToken("te\"sts\\", quoted, secretKey, 1500000000L, 3600L);
+        final JsonNode claims = mapper.readTree(Base64.getUrlDecoder().decode(escaped.getTokened().split("\\.")[1]));
+
+        Assert.assertTrue
+            ( "Minted claims not escaped"
+            , claims.get("uid").asText().equals(quoted) == true && claims.get("iss").asText().equals("te\"sts\\") == true
+            );
+
+        final JsonWebUserToken unescaped = JsonWebUserToken.verify(escaped.getTokened(), secretKey, 1500000100L, mapper);
+
+        Assert.assertTrue
+            ( "Failed to verify escaped token"
+            , unescaped != null && unescaped.getUniqued().equals(quoted) == true && unescaped.getIssuing().equals("te\"sts\\") == true
+            );
+    }
+
+    @Test
+    public void testWebTokenClaims() throws IOException {
+        final String secretKey = "bW9kdWxlIHRlc3Rpbmcgc2VjcmV0";
+        final JsonWebUserToken minted = new JsonWebUserToken("tests", "user@example.com", secretKey, 1500000000L, 3600L);
+        final String [] parts = minted.getTokened().split("\\.");
+        final Base64.Encoder encoder = Base64.getUrlEncoder();
+
+        final JsonWebUserToken nested = new JsonWebUserToken
+            ( parts[0] + "." + encoder.encodeToString("{ ''uid'': ''user@example.com'', ''iss'': ''tests'', ''iat'': 1500000000, ''exp'': { ''uid'': ''other@example.com'', ''iss'': ''other'' } }".replace("''", "\"").getBytes("UTF-8")) + "." + parts[2]
+            , mapper
+            );
+
+        Assert.assertTrue
+            ( "Read claims nested under a claim"
+            , nested.getUniqued().equals("user@example.com") == true && nested.getIssuing().equals("tests") == true
+            );
+
+        final JsonWebUserToken arrayed = new JsonWebUserToken
+            ( parts[0] + "." + encoder.encodeToString("{ ''uid'': [ ''other@example.com'' ], ''iss'': ''tests'' }".replace("''", "\"").getBytes("UTF-8")) + "." + parts[2]
+            , mapper
+            );
+
+        Assert.assertEquals
+            ( "Read claim from array"
+            , ""
+            , arrayed.getUniqued()
+            );
+
+        for (final String payload : new String [] { "{ ''uid'': ''user@example.com'', ''iss'': ", "[ ''user@example.com'' ]", "''user@example.com''" })
+        {
+            Assert.assertNull
+                ( "Accepted malformed payload"
+                , JsonWebUserToken.verify(parts[0] + "." + encoder.encodeToString(payload.replace("''", "\"").getBytes("UTF-8")) + "." + parts[2], secretKey, 1500000100L, mapper)
+                );
+        }
+
+        for (final String token : new String [] { parts[0] + ".!!!." + parts[2], parts[0] + "." + parts[1], parts[0] + "." + parts[1] + "." + parts[2] + ".x" })
+        {
+            Assert.assertNull
+                ( "Accepted malformed token"
+                , JsonWebUserToken.verify(token, secretKey, 1500000100L, mapper)
+                );
+        }
+
+        Assert.assertNotNull
+            ( "Failed to verify token"
+            , JsonWebUserToken.verify(minted.getTokened(), secretKey, 1500000100L, mapper)
+            );
+
+        // Signatures of the same length differing in one byte reach the full
+        // comparison, both when hashed and when answered from the cache.
+
+        final String flipped = (parts[2].charAt(0) == 'A' ? "B" : "A") + parts[2].substring(1);
+
+        for (final String signature : new String [] { flipped, parts[2].substring(0, 40), parts[2].substring(0, 40) + "AAAA" })
+        {
+            Assert.assertNull
+                ( "Accepted mismatched signature"
+                , JsonWebUserToken.verify(parts[0] + "." + parts[1] + "." + signature, secretKey, 1500000100L, mapper)
+                );
+        }
+    }
+
+    @Test
+    public void testKeyring() throws IOException {
+        final String legacyKey = "bW9kdWxlIHRlc3Rpbmcgc2VjcmV0";
+        final JsonWebUserKeyring keyring = new JsonWebUserKeyring()
+            .add("2017-a", "Zmlyc3Qgcm90YXRlZCBzZWNyZXQ=")
+            .add("2017-b", "c2Vjb25kIHJvdGF0ZWQgc2VjcmV0")
+            .useLegacy(legacyKey);
+
+        final JsonWebUserToken first = keyring.mint("tests", "user@example.com", 1500000000L, 3600L);
+
+        keyring.usePrimary("2017-b");
+
+        final JsonWebUserToken second = keyring.mint("tests", "user@example.com", 1500000000L, 3600L);
+        final JsonWebUserToken legacy = new JsonWebUserToken("tests", "user@example.com", legacyKey, 1500000000L, 3600L);
+
+        Assert.assertTrue
+            ( "Failed to name signing keys"
+            , first.getKeyed().equals("2017-a") == true && second.getKeyed().equals("2017-b") == true
+            );
+
+        for (final JsonWebUserToken minted : new JsonWebUserToken [] { first, second, legacy })
+        {
+            final JsonWebUserToken verified = keyring.verify(minted.getTokened(), 1500000100L, mapper);
+
+            Assert.assertTrue
+                ( "Failed to verify token through keyring"
+                , verified != null && verified.getUniqued().equals("user@example.com") == true && verified.getKeyed().equals(minted.getKeyed()) == true
+                );
+        }
+
+        keyring.remove("2017-a");
+
+        Assert.assertNull
+            ( "Accepted token of retired key"
+            , keyring.verify(first.getTokened(), 1500000100L, mapper)
+            );
     }
-    
+
     @Test
-    public void testModule() {
-        final MockedApiService handler = new MockedApiService();
+    public void testAuthenticate() throws IOException {
+        final JsonWebUserKeyring keyring = new JsonWebUserKeyring().add("2017-a", "Zmlyc3Qgcm90YXRlZCBzZWNyZXQ=");
+        final MockedApiService handler = new MockedApiService
+            ( new MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getwho", MultiEndpointApi.Authenticate.REQUIRED) {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    return Collections.singletonMap("uid", context.identity.getUniqued());
+                }
+            }
+            );
         final MockedApiContext context = new MockedApiContext();
+        final String trusted = keyring.mint("tests", "user@example.com", System.currentTimeMillis() / 1000, 60).getTokened();
+
+        handler.keyring = keyring;
 
     	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
 
-    	System.out.println("Testing...");
+        for (final String token : new String [] { "", "Bearer " + trusted, trusted.substring(0, trusted.length() - 4) + "AAA=" })
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( String.format("{ ''command'': ''getwho'', ''request'': { }, ''trusted'': ''%s'' }", token).replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    Assert.assertEquals
+                        ( "Failed to authenticate request"
+                        , token.equals("Bearer " + trusted)
+                        , r.results.equalsIgnoreCase("success") == true && r.o.get("uid").asText().equals("user@example.com") == true
+                        );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGenerated() throws IOException {
+        final MultiEndpointApi<?, ?, ?> handler = new ModuleTest_AnnotatedApiServiceHandler();
+        final MockedApiContext context = new MockedApiContext();
+        final String [] postings = new String []
+            { "{ ''command'': ''GetSum'', ''request'': { ''a'': 20, ''b'': 22 }, ''trusted'': '''' }"
+            , "{ ''command'': ''getlater'', ''request'': { ''n'': 21 }, ''trusted'': '''' }"
+            , "{ ''command'': ''getnone'', ''request'': { }, ''trusted'': '''' }"
+            };
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (int i = 0; i < postings.length; i++)
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( postings[i].replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    Assert.assertEquals
+                        ( "Failed to dispatch generated command"
+                        , i < 2 ? 42 : 0
+                        , r.results.equalsIgnoreCase("success") == true ? r.o.path(i == 0 ? "sum" : "twice").asInt() : 0
+                        );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFailureCodes() throws IOException {
+        final MockedApiService handler = new MockedApiService
+            ( new MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getwho", MultiEndpointApi.Authenticate.REQUIRED) {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    return Collections.singletonMap("uid", context.identity.getUniqued());
+                }
+            }
+            , new MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped>("getnull") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    return null;
+                }
+            }
+            );
+        final MockedApiContext context = new MockedApiContext();
+        final String [][] postings = new String [][]
+            { { "{ ''command'': ''getwho'', ''request'': { }, ''trusted'': '''' }", "unauthorized" }
+            , { "{ ''command'': ''getnull'', ''request'': { }, ''trusted'': '''' }", "handler" }
+            , { "{ ''command'': ''getnone'', ''request'': { }, ''trusted'': '''' }", "unsupported" }
+            , { "{ ''command'': ''getwho'', ''request'': ", "malformed" }
+            };
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final String [] posting : postings)
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( posting[0].replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                final JsonNode r = mapper.readTree(buffer.toByteArray());
+
+                Assert.assertEquals
+                    ( "Failed to answer with error code"
+                    , posting[1]
+                    , r.path("code").asText()
+                    );
+                Assert.assertTrue
+                    ( "Failed to answer when and where request ran"
+                    , r.path("started").asLong() > 0 && r.has("execute") == true
+                    );
+            }
+        }
 
         try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
         {
             handler.handleRequest
                 ( new ByteArrayInputStream
-                    ( String.format
-                        ( "{ ''command'': ''getappdetail''"
-                        + ", ''request'':"
-                        + " { ''o'':"
-                        + " { ''options'': ''testing''"
-                        + " }"
-                        + " }"
-                        + ", ''trusted'': ''''"
-                        + " }"
-                        ).replace("''",  "\"").getBytes("utf8")
+                    ( "{ ''command'': ''getappmetrics'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
                     )
                 , buffer
                 , context
                 );
-            
+
             try (Response r = mapper.readValue(buffer.toString(), Response.class))
             {
                 Assert.assertTrue
-                    ( "Failed to access app details"
-                    , r.results.equalsIgnoreCase("success") == true
+                    ( "Failed to count errors per code"
+                    , r.code == null && r.o.path("counters").path("errors.unauthorized").asLong() > 0 && r.o.path("counters").path("errors.malformed").asLong() > 0
                     );
             }
-            finally
+        }
+    }
+
+    @Test
+    public void testLimited() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getlimited") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    handled.incrementAndGet();
+
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException eX)
+                    {
+                        throw new IOException(eX);
+                    }
+
+                    return 42;
+                }
+            }
+            ) {
+            @Override
+            protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                context.params.add("ms_limit_enabled", "true");
+                context.params.add("ms_limit_initial", "2");
+                context.params.add("ms_limit_max", "2");
+            }
+        };
+        final ExecutorService callers = Executors.newFixedThreadPool(4);
+        final long rejected = MultiEndpointApi.counters.add("limit.rejected", 0);
+        final List<Future<String>> responses = new ArrayList<Future<String>>();
+        final MockedApiContext context = new MockedApiContext();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        try
+        {
+            for (int i = 0; i < 4; i++)
             {
-                System.out.println
-                    ( buffer.toString()
-                     );
-                
-                buffer.reset();
+                responses.add(callers.submit(() -> {
+                    try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+                    {
+                        handler.handleRequest
+                            ( new ByteArrayInputStream
+                                ( "{ ''command'': ''getlimited'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                                )
+                            , buffer
+                            , context
+                            );
+
+                        return buffer.toString("utf8");
+                    }
+                }));
+            }
+
+            for (long waited = 0; MultiEndpointApi.counters.add("limit.rejected", 0) < rejected + 2 && waited < 10000; waited += 10)
+            {
+                Thread.sleep(10);
+            }
+
+            release.countDown();
+
+            int overloaded = 0;
+
+            for (final Future<String> response : responses)
+            {
+                try (Response r = mapper.readValue(response.get(), Response.class))
+                {
+                    overloaded += "overloaded".equals(r.code) == true ? 1 : 0;
+                }
+            }
+
+            Assert.assertTrue
+                ( "Failed to reject requests past concurrency limit"
+                , overloaded == 2 && handled.get() == 2
+                );
+
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( "{ ''command'': ''getappmetrics'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    Assert.assertEquals
+                        ( "Failed to report concurrency limits"
+                        , 2
+                        , r.o.path("limits").path("commands").path("getlimited").path("rejected").asInt()
+                        );
+                }
             }
         }
-        catch (AssertionError eX)
+        finally
         {
-            throw eX;
+            callers.shutdownNow();
         }
-        catch (Exception eX)
+
+        // Slow commands are judged against their own latency, so mixing them
+        // with fast ones leaves the global limit alone.
+
+        final MockedApiService mixed = new MockedApiService
+            ( new MockedApiService.Handler("getfast") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    return 1;
+                }
+            }
+            , new MockedApiService.Handler("getslow") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    try
+                    {
+                        Thread.sleep(80);
+                    }
+                    catch (InterruptedException eX)
+                    {
+                        throw new IOException(eX);
+                    }
+
+                    return 2;
+                }
+            }
+            ) {
+            @Override
+            protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                context.params.add("ms_limit_enabled", "true");
+                context.params.add("ms_limit_global_initial", "10");
+                context.params.add("ms_limit_global_max", "10");
+            }
+        };
+
+        for (final String command : new String [] { "getfast", "getfast", "getfast", "getslow", "getslow", "getslow", "getslow", "getslow", "getappmetrics" })
+        {
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                mixed.handleRequest
+                    ( new ByteArrayInputStream
+                        ( ("{ ''command'': ''" + command + "'', ''request'': { }, ''trusted'': '''' }").replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                if (command.equals("getappmetrics") == true)
+                {
+                    try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                    {
+                        Assert.assertEquals
+                            ( "Global limit collapsed under mixed latencies"
+                            , 10
+                            , r.o.path("limits").path("global").path("limit").asInt()
+                            );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBreaker() throws Exception {
+        final AtomicInteger allocated = new AtomicInteger();
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final MockedApiService handler = new MockedApiService
+            ( new MockedApiService.Handler("getbroken") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) {
+                    return 42;
+                }
+            }
+            ) {
+            @Override
+            protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                context.params.add("ms_breaker_enabled", "true");
+                context.params.add("ms_breaker_min_calls", "3");
+                context.params.add("ms_breaker_open_ms", "200");
+                context.params.add("ms_breaker_probes", "1");
+            }
+
+            @Override
+            protected MockedApiService.HandleApiWrapper allocateResourceWrapper(final MockedApiService.HandleApiContext context) throws IOException {
+                allocated.incrementAndGet();
+
+                if (down.get() == true)
+                {
+                    throw new IOException("Database went away");
+                }
+
+                return new MockedApiService.HandleApiWrapper();
+            }
+        };
+        final MockedApiContext context = new MockedApiContext();
+        final List<String> codes = new ArrayList<String>();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (int i = 0; i < 6; i++)
+        {
+            if (i == 5)
+            {
+                down.set(false);
+
+                Thread.sleep(250);
+            }
+
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( "{ ''command'': ''getbroken'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                try (Response r = mapper.readValue(buffer.toString(), Response.class))
+                {
+                    codes.add(r.code != null ? r.code : r.results);
+                }
+            }
+        }
+
+        Assert.assertEquals
+            ( "Failed to fail fast while circuit is open"
+            , Arrays.asList("internal", "internal", "internal", "unavailable", "unavailable", "success")
+            , codes
+            );
+        Assert.assertEquals
+            ( "Failed to keep calls off an open circuit"
+            , 4
+            , allocated.get()
+            );
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getappmetrics'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
+                );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                final JsonNode breaker = r.o.path("breakers").path("wrapper:" + handler.getClass().getName());
+
+                Assert.assertTrue
+                    ( "Failed to report circuit breaker state"
+                    , breaker.path("state").asText().equals("closed") == true && breaker.path("opened").asInt() == 1 && breaker.path("rejected").asInt() == 2
+                    );
+            }
+        }
+    }
+
+    @Test
+    public void testIdempotent() throws IOException {
+        final File stored = File.createTempFile("microwrap-idempotency", ".map");
+        final AtomicInteger handled = new AtomicInteger();
+        final MultiEndpointApi.Handled<MockedApiService.HandleApiContext, MockedApiService.HandleApiWrapped> charge = new MockedApiService.Handler("putcharge") {
+            @Override
+            public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                handled.incrementAndGet();
+
+                if (mapper.readTree(posting).get("o").asBoolean() == false)
+                {
+                    throw new IOException("Payment service went away");
+                }
+
+                return handled.get();
+            }
+        };
+        final List<String> responses = new ArrayList<String>();
+        final MockedApiContext context = new MockedApiContext();
+
+        stored.deleteOnExit();
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:us-west-2:0:function:microservice-wrap:test");
+
+        for (final String [] posting : new String [][] { { "evt-1", "true" }, { "evt-1", "true" }, { "evt-2", "true" }, { "evt-3", "false" }, { "evt-3", "false" }, { "evt-1", "true" } })
+        {
+            final MockedApiService handler = new MockedApiService(charge) {
+                @Override
+                protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                    super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                    context.params.add("ms_idempotency_file", stored.getPath());
+                }
+            };
+
+            try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+            {
+                handler.handleRequest
+                    ( new ByteArrayInputStream
+                        ( ("{ ''command'': ''putcharge'', ''request'': { ''o'': " + posting[1] + " }, ''trusted'': '''', ''idempotency'': ''" + posting[0] + "'' }").replace("''",  "\"").getBytes("utf8")
+                        )
+                    , buffer
+                    , context
+                    );
+
+                responses.add(buffer.toString("utf8"));
+            }
+        }
+
+        Assert.assertEquals
+            ( "Failed to skip handler for completed idempotency keys"
+            , 4
+            , handled.get()
+            );
+        Assert.assertTrue
+            ( "Failed to answer duplicates with recorded result"
+            , responses.get(1).equals(responses.get(0)) == true && responses.get(5).equals(responses.get(0)) == true && responses.get(2).equals(responses.get(0)) == false
+            );
+
+        // Duplicates arriving while the first is still running wait for its
+        // recorded result rather than running again.
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger charged = new AtomicInteger();
+        final MockedApiService blocking = new MockedApiService
+            ( new MockedApiService.Handler("putcharge") {
+                @Override
+                public Object doCommand(final MockedApiService.HandleApiContext context, final MockedApiService.HandleApiWrapped wrapped, final String posting, final Date started) throws IOException {
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException eX)
+                    {
+                        throw new IOException(eX);
+                    }
+
+                    return charged.incrementAndGet();
+                }
+            }
+            ) {
+            @Override
+            protected void fixupRequestContainer(final MockedApiService.HandleApiContext context, final String command, final String trusted, final String region, final String config, final Tracer logger) throws IOException {
+                super.fixupRequestContainer(context, command, trusted, region, config, logger);
+
+                context.params.add("ms_idempotency_file", stored.getPath());
+            }
+        };
+        final ExecutorService callers = Executors.newFixedThreadPool(2);
+        final long waited = MultiEndpointApi.counters.add("idempotency.waited", 0);
+        final List<Future<String>> duplicates = new ArrayList<Future<String>>();
+
+        try
+        {
+            for (int i = 0; i < 2; i++)
+            {
+                duplicates.add(callers.submit(() -> {
+                    try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+                    {
+                        blocking.handleRequest
+                            ( new ByteArrayInputStream
+                                ( "{ ''command'': ''putcharge'', ''request'': { ''o'': true }, ''trusted'': '''', ''idempotency'': ''evt-4'' }".replace("''",  "\"").getBytes("utf8")
+                                )
+                            , buffer
+                            , context
+                            );
+
+                        return buffer.toString("utf8");
+                    }
+                }));
+            }
+
+            for (long slept = 0; MultiEndpointApi.counters.add("idempotency.waited", 0) < waited + 1 && slept < 10000; slept += 10)
+            {
+                Thread.sleep(10);
+            }
+
+            release.countDown();
+
+            Assert.assertTrue
+                ( "Failed to answer concurrent duplicate with recorded result"
+                , duplicates.get(0).get().equals(duplicates.get(1).get()) == true && charged.get() == 1
+                );
+        }
+        catch (InterruptedException | ExecutionException eX)
         {
             Assert.fail
-                ( "Oops because " + eX.getMessage().toLowerCase()
+                ( "Oops because " + eX.getMessage()
                 );
         }
         finally
         {
-            System.out.println
-                ( "Done."
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParams() {
+        final MultiEndpointApi.Params params = new MultiEndpointApi.Params();
+
+        params.add("MS_SIZE", " 42 ");
+        params.add("ms_bad", "forty-two");
+        params.add("ms_on", "TRUE");
+        params.add("ms_one", "1");
+        params.add("ms_off", "0");
+        params.add("ms_maybe", "maybe");
+
+        Assert.assertEquals("Failed to read long ignoring case and spaces", 42, params.getOrDefault("ms_size", 7));
+        Assert.assertEquals("Failed to default unparsable long", 7, params.getOrDefault("ms_bad", 7));
+        Assert.assertEquals("Failed to default missing long", 7, params.getOrDefault("ms_none", 7));
+        Assert.assertEquals("Failed to read true", true, params.getOrDefault("ms_on", false));
+        Assert.assertEquals("Failed to read one as true", true, params.getOrDefault("ms_one", false));
+        Assert.assertEquals("Failed to read zero as false", false, params.getOrDefault("ms_off", true));
+        Assert.assertEquals("Failed to default unparsable boolean", true, params.getOrDefault("ms_maybe", true));
+        Assert.assertEquals("Failed to default missing string", "x", params.getOrDefault("ms_none", "x"));
+    }
+
+    @Test
+    public void testClientSettings() throws IOException {
+        final CachedApiService handler = new CachedApiService();
+        final CachedApiService.CachedContext cached = handler.fixup
+            ( "ca-central-1"
+            , "ms_client_maxconn", "7"
+            , "ms_client_lambda_maxconn", "11"
+            , "ms_client_conntimeout", "1500"
+            , "ms_client_lambda_keepalive", "1"
+            , "ms_client_retries", "2"
+            );
+        final MockedApiContext context = new MockedApiContext();
+
+        Assert.assertNotNull
+            ( "Failed to build cached client"
+            , cached.access()
+            );
+        Assert.assertSame
+            ( "Failed to reuse cached client"
+            , cached.access()
+            , cached.access()
+            );
+
+    	context.setInvokedFunctionArn("arn:aws:lambda:ca-central-1:0:function:microservice-wrap:test");
+
+        try (final ByteArrayOutputStream buffer = new ByteArrayOutputStream())
+        {
+            handler.handleRequest
+                ( new ByteArrayInputStream
+                    ( "{ ''command'': ''getappmetrics'', ''request'': { }, ''trusted'': '''' }".replace("''",  "\"").getBytes("utf8")
+                    )
+                , buffer
+                , context
                 );
+
+            try (Response r = mapper.readValue(buffer.toString(), Response.class))
+            {
+                JsonNode resolved = null;
+
+                for (final JsonNode client : r.o.path("clients"))
+                {
+                    if (client.path("region").asText().equals("ca-central-1") == true && client.path("service").asText().equals("lambda") == true)
+                    {
+                        resolved = client;
+                    }
+                }
+
+                Assert.assertTrue
+                    ( "Failed to report metrics sections"
+                    , r.results.equalsIgnoreCase("success") == true && r.o.has("counters") == true && resolved != null
+                    );
+                Assert.assertEquals("Failed to prefer service setting", 11, resolved.path("maxConnections").asInt());
+                Assert.assertEquals("Failed to fall back to shared setting", 1500, resolved.path("connectionTimeout").asInt());
+                Assert.assertEquals("Failed to resolve keep-alive", true, resolved.path("useTcpKeepAlive").asBoolean());
+                Assert.assertEquals("Failed to resolve retries", 2, resolved.path("maxErrorRetry").asInt());
+                Assert.assertEquals("Failed to resolve retry policy", "default", resolved.path("retryPolicy").asText());
+                Assert.assertEquals("Failed to mark tuned client", true, resolved.path("tuned").asBoolean());
+            }
         }
     }
 
+    @Test
+    public void testClientWorkers() throws Exception {
+        final CachedApiService handler = new CachedApiService();
+        final com.amazonaws.services.lambda.AWSLambdaAsyncClient first = (com.amazonaws.services.lambda.AWSLambdaAsyncClient) handler.fixup("ap-south-1", "ms_client_async_threads", "3").accessAsync();
+        final com.amazonaws.services.lambda.AWSLambdaAsyncClient second = (com.amazonaws.services.lambda.AWSLambdaAsyncClient) handler.fixup("eu-west-2", "ms_client_async_threads", "3").accessAsync();
+
+        Assert.assertNotSame
+            ( "Failed to build async client per region"
+            , first
+            , second
+            );
+        Assert.assertTrue
+            ( "Failed to run async clients on shared workers"
+            , first.getExecutorService().submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS).startsWith("microwrap-client-") == true
+            );
+
+        first.shutdown();
+
+        Assert.assertFalse
+            ( "Failed to ignore shutdown of shared workers"
+            , first.getExecutorService().isShutdown()
+            );
+        Assert.assertTrue
+            ( "Failed to keep shared workers running for other clients"
+            , second.getExecutorService().submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS).startsWith("microwrap-client-") == true
+            );
+    }
+
     static class MockedApiContext implements Context {
     	private String invokedFunctionArn = "";
+    	private int remainingTimeInMillis = 0;
     	
         private LambdaLogger logger = new LambdaLogger() {
             @Override
@@ -185,7 +2342,11 @@ public class ModuleTest {
 
         @Override
         public int getRemainingTimeInMillis() {
-            return 0;
+            return this.remainingTimeInMillis;
+        }
+
+        public void setRemainingTimeInMillis(final int value) {
+            this.remainingTimeInMillis = value;
         }
 
         @Override
@@ -207,6 +2368,7 @@ public class ModuleTest {
     static class Response implements AutoCloseable {
         public String results = "";
         public String trusted = "";
+        public String code = null;
         public JsonNode o = null;
 
         public void close() {